@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Bilevel encoding of a sheet with CCITT Group 4 (T.6), as used by PDF
+ * (CCITTFaxDecode, K -1) and TIFF (compression 4). A pixel is black when
+ * composited over white it is darker than the paper threshold; each row is
+ * coded against the row above, which is what makes the code so short for
+ * staff lines and blank paper.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class CcittG4Encoder {
+
+    private static final String[] WHITE_TERMINATING = {
+        "00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+        "10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+        "101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+        "0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+        "00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+        "00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+        "00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+        "01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100"};
+    private static final String[] BLACK_TERMINATING = {
+        "0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+        "000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+        "0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100",
+        "00000110111", "00000101000", "00000010111", "00000011000", "000011001010", "000011001011",
+        "000011001100", "000011001101", "000001101000", "000001101001", "000001101010", "000001101011",
+        "000011010010", "000011010011", "000011010100", "000011010101", "000011010110", "000011010111",
+        "000001101100", "000001101101", "000011011010", "000011011011", "000001010100", "000001010101",
+        "000001010110", "000001010111", "000001100100", "000001100101", "000001010010", "000001010011",
+        "000000100100", "000000110111", "000000111000", "000000100111", "000000101000", "000001011000",
+        "000001011001", "000000101011", "000000101100", "000001011010", "000001100110", "000001100111"};
+    //Make up codes for 64, 128, ... 1728:
+    private static final String[] WHITE_MAKE_UP = {
+        "11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+        "01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100",
+        "011010101", "011010110", "011010111", "011011000", "011011001", "011011010", "011011011",
+        "010011000", "010011001", "010011010", "011000", "010011011"};
+    private static final String[] BLACK_MAKE_UP = {
+        "0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100",
+        "000000110101", "0000001101100", "0000001101101", "0000001001010", "0000001001011",
+        "0000001001100", "0000001001101", "0000001110010", "0000001110011", "0000001110100",
+        "0000001110101", "0000001110110", "0000001110111", "0000001010010", "0000001010011",
+        "0000001010100", "0000001010101", "0000001011010", "0000001011011", "0000001100100",
+        "0000001100101"};
+    //Make up codes for 1792, 1856, ... 2560, shared by both colors:
+    private static final String[] EXTENDED_MAKE_UP = {
+        "00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100",
+        "000000010101", "000000010110", "000000010111", "000000011100", "000000011101",
+        "000000011110", "000000011111"};
+    //Vertical mode codes for b1 - a1 = -3 ... 3:
+    private static final String[] VERTICAL = {"0000011", "000011", "011", "1", "010", "000010", "0000010"};
+    private static final String PASS = "0001", HORIZONTAL = "001", EOL = "000000000001";
+
+    private final ByteArrayOutputStream coded;
+    private int bitBuffer, bitCount;
+
+    private CcittG4Encoder(){
+        coded = new ByteArrayOutputStream();
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    /**
+     * @param paperThreshold brightness (0-256, see LuminancePlane.toThreshold)
+     * from which a pixel is paper.
+     * @return the sheet coded with Group 4, ending with EOFB.
+     */
+    public static byte[] encode(Raster sheet, int paperThreshold){
+        CcittG4Encoder encoder;
+        byte[] reference, coding, swap;
+        int w;
+
+        encoder = new CcittG4Encoder();
+        w = sheet.getWidth();
+        //The line above the first one is white:
+        reference = new byte[w];
+        coding = new byte[w];
+        for(int row = 0; row < sheet.getHeight(); row++){
+            threshold(sheet, row, paperThreshold, coding);
+            encoder.encodeRow(coding, reference, w);
+            swap = reference;
+            reference = coding;
+            coding = swap;
+        }
+        encoder.putCode(EOL);
+        encoder.putCode(EOL);
+        encoder.flushBits();
+        return encoder.coded.toByteArray();
+    }
+
+    /**
+     * Writes the sheet as a bilevel TIFF file with Group 4 compression.
+     */
+    public static void writeTiff(OutputStream out, Raster sheet, int paperThreshold,
+            double dotsPerInch) throws IOException {
+        DataOutputStream tiff;
+        byte[] strip;
+        int entries, ifdOffset, resolutionOffset;
+
+        strip = encode(sheet, paperThreshold);
+        entries = 10;
+        ifdOffset = 8 + strip.length + (strip.length % 2);
+        resolutionOffset = ifdOffset + 2 + (12*entries) + 4;
+        tiff = new DataOutputStream(out);
+        tiff.writeBytes("MM");
+        tiff.writeShort(42);
+        tiff.writeInt(ifdOffset);
+        tiff.write(strip);
+        if((strip.length % 2) != 0){
+            tiff.write(0);
+        }
+        tiff.writeShort(entries);
+        tiffEntry(tiff, 256, 4, sheet.getWidth());         //ImageWidth
+        tiffEntry(tiff, 257, 4, sheet.getHeight());        //ImageLength
+        tiffEntry(tiff, 259, 3, 4);                        //Compression: T.6
+        tiffEntry(tiff, 262, 3, 0);                        //Photometric: white is zero
+        tiffEntry(tiff, 273, 4, 8);                        //StripOffsets
+        tiffEntry(tiff, 278, 4, sheet.getHeight());        //RowsPerStrip
+        tiffEntry(tiff, 279, 4, strip.length);             //StripByteCounts
+        tiffEntry(tiff, 282, 5, resolutionOffset);         //XResolution
+        tiffEntry(tiff, 283, 5, resolutionOffset);         //YResolution
+        tiffEntry(tiff, 296, 3, 2);                        //ResolutionUnit: inch
+        tiff.writeInt(0);
+        tiff.writeInt((int) Math.round(dotsPerInch*100.0));
+        tiff.writeInt(100);
+        tiff.flush();
+    }
+
+    private static void tiffEntry(DataOutputStream tiff, int tag, int type, int value)
+            throws IOException {
+        tiff.writeShort(tag);
+        tiff.writeShort(type);
+        tiff.writeInt(1);
+        if(type == 3){
+            tiff.writeShort(value);
+            tiff.writeShort(0);
+        } else {
+            tiff.writeInt(value);
+        }
+    }
+
+    /**
+     * Black (1) where the pixel, over white, is darker than the paper.
+     */
+    private static void threshold(Raster sheet, int row, int paperThreshold, byte[] bits){
+        int[] pixels;
+        int argb, paper, r, g, b, max;
+
+        pixels = sheet.getPixels();
+        for(int x = 0; x < bits.length; x++){
+            argb = pixels[sheet.offset(x, row)];
+            paper = 255 - (argb >>> 24);
+            r = ((argb >> 16) & 0xff) + paper;
+            g = ((argb >> 8) & 0xff) + paper;
+            b = (argb & 0xff) + paper;
+            max = (r > g) ? r : g;
+            if(b > max){
+                max = b;
+            }
+            bits[x] = (byte) ((max < paperThreshold) ? 1 : 0);
+        }
+    }
+
+    /**
+     * @return the first position from start on where the row is not of the
+     * color, or w.
+     */
+    private static int nextChange(byte[] row, int start, int w, int color){
+        int x = start;
+        while((x < w) && (row[x] == color)){
+            x++;
+        }
+        return x;
+    }
+
+    private void encodeRow(byte[] coding, byte[] reference, int w){
+        int a0, a1, a2, b1, b2, d, color;
+
+        if(w == 0){
+            return;
+        }
+        a0 = 0;
+        a1 = (coding[0] != 0) ? 0 : nextChange(coding, 0, w, 0);
+        b1 = (reference[0] != 0) ? 0 : nextChange(reference, 0, w, 0);
+        while(true){
+            b2 = (b1 < w) ? nextChange(reference, b1, w, reference[b1]) : w;
+            if(b2 >= a1){
+                d = b1 - a1;
+                if((d >= -3) && (d <= 3)){
+                    putCode(VERTICAL[d + 3]);
+                    a0 = a1;
+                } else {
+                    a2 = (a1 < w) ? nextChange(coding, a1, w, coding[a1]) : w;
+                    putCode(HORIZONTAL);
+                    if(((a0 + a1) == 0) || (coding[a0] == 0)){
+                        putRun(a1 - a0, WHITE_TERMINATING, WHITE_MAKE_UP);
+                        putRun(a2 - a1, BLACK_TERMINATING, BLACK_MAKE_UP);
+                    } else {
+                        putRun(a1 - a0, BLACK_TERMINATING, BLACK_MAKE_UP);
+                        putRun(a2 - a1, WHITE_TERMINATING, WHITE_MAKE_UP);
+                    }
+                    a0 = a2;
+                }
+            } else {
+                putCode(PASS);
+                a0 = b2;
+            }
+            if(a0 >= w){
+                break;
+            }
+            color = coding[a0];
+            a1 = nextChange(coding, a0, w, color);
+            b1 = nextChange(reference, a0, w, 1 - color);
+            b1 = nextChange(reference, b1, w, color);
+        }
+    }
+
+    private void putRun(int run, String[] terminating, String[] makeUp){
+        int chunk;
+
+        while(run > 2560){
+            putCode(EXTENDED_MAKE_UP[EXTENDED_MAKE_UP.length - 1]);
+            run -= 2560;
+        }
+        if(run >= 64){
+            chunk = run - (run % 64);
+            if(chunk >= 1792){
+                putCode(EXTENDED_MAKE_UP[(chunk - 1792)/64]);
+            } else {
+                putCode(makeUp[(chunk/64) - 1]);
+            }
+            run -= chunk;
+        }
+        putCode(terminating[run]);
+    }
+
+    private void putCode(String bits){
+        for(int bInd = 0; bInd < bits.length(); bInd++){
+            bitBuffer = (bitBuffer << 1) | (bits.charAt(bInd) - '0');
+            bitCount++;
+            if(bitCount == 8){
+                coded.write(bitBuffer);
+                bitBuffer = 0;
+                bitCount = 0;
+            }
+        }
+    }
+
+    private void flushBits(){
+        if(bitCount > 0){
+            coded.write(bitBuffer << (8 - bitCount));
+            bitBuffer = 0;
+            bitCount = 0;
+        }
+    }
+
+}
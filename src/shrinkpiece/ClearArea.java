@@ -33,6 +33,8 @@ public class ClearArea extends ResizableArea {
     private Bounds offsetClip;
     private Group myGuideRects;
     private double wVerGuide, hHorGuide, sTXCA, sTYCA, mXS, mYS;
+    private InkIntegral inkCounts;
+    private int inkTolerance;
     
     public ClearArea(){
         setHorizontalRestriction(true);
@@ -43,10 +45,44 @@ public class ClearArea extends ResizableArea {
         clArea.setStroke(Color.RED);
         clArea.setStrokeWidth(2.0);
         clArea.setStrokeType(StrokeType.OUTSIDE);   
+        inkCounts = null;
+        inkTolerance = 0;
+        clArea.boundsInParentProperty().addListener((bs, oBs, nBs)->{
+            markInk();
+        });
          
         setGuides();
     }     
     
+    /**
+     * Ink sums of the sheet to check the area against while it is adjusted;
+     * an area holding more than rowTolerance ink pixels per row turns orange.
+     */
+    public void setInkCounts(InkIntegral sheetInk, int rowTolerance){
+        inkCounts = sheetInk;
+        inkTolerance = rowTolerance;
+        markInk();
+    }
+    
+    public boolean containsInk(){
+        int minX, minY, maxX, maxY;
+        
+        if(inkCounts == null){
+            return false;
+        }
+        minX = (int) getTranslateXRA();
+        minY = (int) getTranslateYRA();
+        maxX = minX + ((int) getWidthExclusive());
+        maxY = minY + ((int) getHeightExclusive());
+        return inkCounts.count(minX, minY, maxX, maxY) > (inkTolerance*Math.max(maxY - minY, 1));
+    }
+    
+    private void markInk(){
+        Color areaColor = containsInk() ? Color.ORANGE : Color.RED;
+        clArea.setFill(areaColor);
+        clArea.setStroke(areaColor);
+    }
+    
     @Override
     public void setOnMouseEnteredArea(){        
         clArea.setOpacity(0.6);
@@ -61,6 +61,13 @@ public class ColorThreshold extends Group {
                 }
             }
         });
+        thColPicker.valueProperty().addListener(
+                (ObservableValue<? extends Color> pickVal, Color formerPick, Color newPick) -> {
+            //Follow the picker while it is open, for a live preview:
+            if(thColPicker.isVisible() && (newPick != null)){
+                setColorThreshold(newPick);
+            }
+        });
         thColPicker.setOnAction((cPAc)->{
             setColorThreshold(thColPicker.getValue());
             thColPicker.setVisible(false);
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Log of the edits performed on a sheet, each one a command with the
+ * parameters it was performed with (rectangles, polygon points, offsets,
+ * scale factors, text) and the image or font it drew, if any. Alongside the
+ * log the undo history keeps checkpoints of the sheet, each marked with the
+ * number of edits logged when it was taken. Any state of the sheet is found
+ * back by restoring the nearest checkpoint before it and replaying the
+ * edits logged after that checkpoint. Edits rewound by an undo stay in the
+ * log for a redo until a new edit is logged.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class EditLog<A extends Enum<A>> {
+
+    private final ArrayList<Edit<A>> edits;
+    private final ArrayList<Integer> redoEnds;
+    private int applied;
+
+    public EditLog(){
+        edits = new ArrayList<Edit<A>>();
+        redoEnds = new ArrayList<Integer>();
+        applied = 0;
+    }
+
+    /**
+     * Logs an edit; edits rewound before are no longer redone.
+     *
+     * @param source the image drawn or the font family of the text, or null.
+     * @return whether there were rewound edits.
+     */
+    public boolean add(A action, Object source, String text, double... params){
+        return add(new Edit<A>(action, source, text, params));
+    }
+
+    public boolean add(A action){
+        return add(action, null, null);
+    }
+
+    public boolean add(Edit<A> edit){
+        boolean discarded = discardRedo();
+        edits.add(edit);
+        applied++;
+        return discarded;
+    }
+
+    /**
+     * @return the number of edits performed (not rewound).
+     */
+    public int size(){
+        return applied;
+    }
+
+    public boolean isEmpty(){
+        return applied == 0;
+    }
+
+    public A get(int ind){
+        return getEdit(ind).getAction();
+    }
+
+    public Edit<A> getEdit(int ind){
+        if((ind < 0) || (ind >= applied)){
+            throw new IndexOutOfBoundsException("Edit " + ind + " of " + applied);
+        }
+        return edits.get(ind);
+    }
+
+    /**
+     * @return the edits performed within [from, to).
+     */
+    public List<Edit<A>> getEdits(int from, int to){
+        return new ArrayList<Edit<A>>(edits.subList(Math.max(from, 0), Math.min(to, applied)));
+    }
+
+    /**
+     * @return the index of the last edit performed with one of the actions,
+     * or -1.
+     */
+    public int lastIndexOf(List<A> actions){
+        for(int ind = applied - 1; ind >= 0; ind--){
+            if(actions.contains(edits.get(ind).getAction())){
+                return ind;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes the last edit out of the log, for an edit undone without
+     * touching the sheet.
+     */
+    public void removeLast(){
+        discardRedo();
+        if(applied > 0){
+            edits.remove(--applied);
+        }
+    }
+
+    public void clear(){
+        edits.clear();
+        redoEnds.clear();
+        applied = 0;
+    }
+
+    /**
+     * Rewinds the log to before the edit at mark.
+     */
+    public void rewind(int mark){
+        if((mark >= 0) && (mark < applied)){
+            redoEnds.add(applied);
+            applied = mark;
+        }
+    }
+
+    public boolean canForward(){
+        return !redoEnds.isEmpty();
+    }
+
+    /**
+     * Performs the edits of the last rewind again.
+     *
+     * @return those edits, to be replayed.
+     */
+    public List<Edit<A>> forward(){
+        int from;
+
+        if(redoEnds.isEmpty()){
+            return new ArrayList<Edit<A>>();
+        }
+        from = applied;
+        applied = redoEnds.remove(redoEnds.size() - 1);
+        return new ArrayList<Edit<A>>(edits.subList(from, applied));
+    }
+
+    /**
+     * Drops the edits rewound.
+     *
+     * @return whether there were any.
+     */
+    public boolean discardRedo(){
+        boolean discarded = applied < edits.size();
+
+        edits.subList(applied, edits.size()).clear();
+        redoEnds.clear();
+        return discarded;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder log = new StringBuilder();
+        for(int ind = 0; ind < applied; ind++){
+            log.append(ind).append(": ").append(edits.get(ind)).append('\n');
+        }
+        return log.toString();
+    }
+
+    public static class Edit<A> {
+
+        private final A action;
+        private final Object source;
+        private final String text;
+        private final double[] params;
+
+        public Edit(A editAction, Object editSource, String editText, double[] editParams){
+            action = editAction;
+            source = editSource;
+            text = editText;
+            params = (editParams != null) ? editParams.clone() : new double[0];
+        }
+
+        public A getAction(){
+            return action;
+        }
+
+        /**
+         * @return the image drawn or the font family of the text, or null.
+         */
+        public Object getSource(){
+            return source;
+        }
+
+        /**
+         * @return the text entered, or null.
+         */
+        public String getText(){
+            return text;
+        }
+
+        public double[] getParams(){
+            return params.clone();
+        }
+
+        @Override
+        public String toString(){
+            return action + ((text != null) ? (" \"" + text + "\"") : "") +
+                    ((params.length > 0) ? (" " + Arrays.toString(params)) : "");
+        }
+    }
+
+}
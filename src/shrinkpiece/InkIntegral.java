@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+/**
+ * Summed-area table of an ink mask: entry (x, y) holds the number of ink
+ * pixels above and left of it. The ink in any rectangle follows from four
+ * lookups, so areas can be checked for blankness on every drag event.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class InkIntegral {
+
+    private final int width, height, stride;
+    private final int[] sums;
+
+    public InkIntegral(InkMask mask){
+        width = mask.getWidth();
+        height = mask.getHeight();
+        stride = width + 1;
+        sums = new int[stride*(height + 1)];
+        update(mask, 0, 0);
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * Recomputes the sums after the mask changed right of minX and below minY
+     * only. Entries left of and above the change keep their values.
+     */
+    public void update(InkMask mask, int minX, int minY){
+        int rowSum, above, here;
+
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        for(int y = minY; y < height; y++){
+            above = y*stride;
+            here = above + stride;
+            //Ink of the row left of minX, from the unchanged part:
+            rowSum = (sums[here + minX] - sums[above + minX]);
+            for(int x = minX; x < width; x++){
+                if(mask.isInk(x, y)){
+                    rowSum++;
+                }
+                sums[here + x + 1] = sums[above + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * @return the number of ink pixels in [minX, maxX) x [minY, maxY).
+     */
+    public int count(int minX, int minY, int maxX, int maxY){
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, height);
+        if((minX >= maxX) || (minY >= maxY)){
+            return 0;
+        }
+        return sums[(maxY*stride) + maxX] - sums[(minY*stride) + maxX]
+                - sums[(maxY*stride) + minX] + sums[(minY*stride) + minX];
+    }
+
+    public int rowInk(int y, int minX, int maxX){
+        return count(minX, y, maxX, y + 1);
+    }
+
+    public boolean isBlank(int minX, int minY, int maxX, int maxY){
+        return count(minX, minY, maxX, maxY) == 0;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.Arrays;
+
+/**
+ * Bilevel version of a sheet for one paper threshold: one bit per pixel, set
+ * for ink (darker than the threshold), packed in longs per row. Counts work
+ * on whole words, skipping empty words and counting with Long.bitCount.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class InkMask {
+
+    private final int width, height, rowWords, threshold;
+    private final long[] bits;
+
+    public InkMask(LuminancePlane plane, int paperThreshold){
+        width = plane.getWidth();
+        height = plane.getHeight();
+        threshold = paperThreshold;
+        rowWords = (width + 63) >>> 6;
+        bits = new long[rowWords*height];
+        update(plane, 0, 0, width, height);
+    }
+
+    /**
+     * Sets the bits of [minX, maxX) x [minY, maxY) again from the plane.
+     */
+    public final void update(LuminancePlane plane, int minX, int minY, int maxX, int maxY){
+        int rowStart, wordStart;
+        byte[] lum;
+        long bit;
+
+        lum = plane.getPlane();
+        for(int y = Math.max(minY, 0); y < Math.min(maxY, height); y++){
+            rowStart = y*width;
+            wordStart = y*rowWords;
+            for(int x = Math.max(minX, 0); x < Math.min(maxX, width); x++){
+                bit = 1L << (x & 63);
+                if((lum[rowStart + x] & 0xff) < threshold){
+                    bits[wordStart + (x >>> 6)] |= bit;
+                } else {
+                    bits[wordStart + (x >>> 6)] &= ~bit;
+                }
+            }
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getThreshold(){
+        return threshold;
+    }
+
+    public boolean isInk(int x, int y){
+        return (bits[(y*rowWords) + (x >>> 6)] & (1L << (x & 63))) != 0L;
+    }
+
+    /**
+     * @return the number of ink pixels in the row.
+     */
+    public int rowInk(int y){
+        long word;
+        int count, wordStart;
+
+        count = 0;
+        wordStart = y*rowWords;
+        for(int wInd = 0; wInd < rowWords; wInd++){
+            word = bits[wordStart + wInd];
+            if(word != 0L){
+                count += Long.bitCount(word);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the ink pixels per column to colInk (of length width). Empty and
+     * fully inked words are handled per word.
+     */
+    public void addColumnInk(int[] colInk){
+        int[] fullWords;
+        long word;
+        int bit, base;
+
+        fullWords = new int[rowWords];
+        for(int y = 0; y < height; y++){
+            base = y*rowWords;
+            for(int wInd = 0; wInd < rowWords; wInd++){
+                word = bits[base + wInd];
+                if(word == -1L){
+                    fullWords[wInd]++;
+                } else {
+                    while(word != 0L){
+                        bit = Long.numberOfTrailingZeros(word);
+                        colInk[(wInd << 6) + bit]++;
+                        word &= word - 1L;
+                    }
+                }
+            }
+        }
+        for(int wInd = 0; wInd < rowWords; wInd++){
+            if(fullWords[wInd] > 0){
+                for(int x = wInd << 6; (x < ((wInd + 1) << 6)) && (x < width); x++){
+                    colInk[x] += fullWords[wInd];
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the paper pixels of row y transparent (ARGB 0) in pixels, where
+     * the row starts at offset. Paper-only words are cleared at once.
+     */
+    public void clearPaper(int[] pixels, int offset, int y){
+        int base, from, to;
+        long word;
+
+        base = y*rowWords;
+        for(int wInd = 0; wInd < rowWords; wInd++){
+            word = bits[base + wInd];
+            from = wInd << 6;
+            to = Math.min(from + 64, width);
+            if(word == 0L){
+                Arrays.fill(pixels, offset + from, offset + to, 0);
+            } else if(word != -1L){
+                for(int x = from; x < to; x++){
+                    if((word & (1L << (x & 63))) == 0L){
+                        pixels[offset + x] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.paint.Color;
+
+/**
+ * Brightness of every pixel of a sheet, pulled once from a PixelReader. The
+ * brightness equals Color.getBrightness() scaled to 0-255, so comparisons with
+ * a threshold from toThreshold() match the former per-pixel Color tests.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class LuminancePlane {
+
+    private final int width, height;
+    private final byte[] brightness;
+
+    public LuminancePlane(PixelReader fromReader, int w, int h){
+        width = w;
+        height = h;
+        brightness = new byte[w*h];
+        update(fromReader, 0, 0, w, h);
+    }
+
+    LuminancePlane(byte[] plane, int w, int h){
+        width = w;
+        height = h;
+        brightness = plane;
+    }
+
+    /**
+     * Pulls the brightness of [minX, maxX) x [minY, maxY) again, after the
+     * sheet changed within that rectangle only.
+     */
+    public final void update(PixelReader fromReader, int minX, int minY, int maxX, int maxY){
+        int[] rowArgb;
+        int argb, r, g, b, max, w;
+
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, height);
+        if((minX >= maxX) || (minY >= maxY)){
+            return;
+        }
+        w = maxX - minX;
+        rowArgb = new int[w];
+        for(int y = minY; y < maxY; y++){
+            fromReader.getPixels(minX, y, w, 1, PixelFormat.getIntArgbInstance(),
+                    rowArgb, 0, w);
+            for(int x = 0; x < w; x++){
+                argb = rowArgb[x];
+                r = (argb >> 16) & 0xff;
+                g = (argb >> 8) & 0xff;
+                b = argb & 0xff;
+                max = (r > g) ? r : g;
+                if(b > max){
+                    max = b;
+                }
+                brightness[(y*width) + minX + x] = (byte) max;
+            }
+        }
+    }
+
+    /**
+     * Integer counterpart of Color.getBrightness(): a pixel is paper when its
+     * brightness is at least the returned value (0-256). Colors keep their
+     * components as floats, hence the comparison at float precision.
+     */
+    public static int toThreshold(Color paperColor){
+        double thrBrightness = paperColor.getBrightness();
+        for(int level = 0; level < 256; level++){
+            if(((double)((float)(level/255.0))) >= thrBrightness){
+                return level;
+            }
+        }
+        return 256;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getBrightness(int x, int y){
+        return brightness[(y*width) + x] & 0xff;
+    }
+
+    public boolean isPaper(int x, int y, int threshold){
+        return (brightness[(y*width) + x] & 0xff) >= threshold;
+    }
+
+    /**
+     * Direct access to the row-major plane for allocation-free kernels.
+     */
+    public byte[] getPlane(){
+        return brightness;
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pages of print selections rendered as rasters on a pool of workers. A page
+ * is identified by the placements of its selections (see PagePacker); it stays cached until an
+ * edit of the sheet touches one of them, so printing or exporting again after
+ * a small change only renders the pages that changed. Pages are composited
+ * over white paper as they are rendered, at the resolution of the device
+ * they go to. The sheet is read through its parts, from a shared sheet
+ * composition that is not written to any more (see SheetComposition.share).
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PageCache {
+
+    public static final long CACHE_BYTES = 128L*1024*1024;
+    private final ExecutorService renderers = Executors.newFixedThreadPool(
+            Math.max(Runtime.getRuntime().availableProcessors(), 1), (r)->{
+        Thread rendererThread = new Thread(r, "page-rendering");
+        rendererThread.setDaemon(true);
+        return rendererThread;
+    });
+    private final LinkedHashMap<String, CachedPage> pages;
+    private long cachedBytes, version;
+
+    public PageCache(){
+        pages = new LinkedHashMap<String, CachedPage>(16, 0.75f, true);
+        cachedBytes = 0;
+        version = 0;
+    }
+
+    /**
+     * @return the number of invalidations so far; pages of a sheet read at
+     * an earlier version are rendered but not cached.
+     */
+    public synchronized long getVersion(){
+        return version;
+    }
+
+    /**
+     * Places the selections after each other (below each other when
+     * vertical), clipped to the sheet.
+     *
+     * @param selections {minX, minY, maxX, maxY} per selection.
+     * @return {srcX, srcY, width, height, pageX, pageY, rotated} per
+     * selection, none of them rotated (1 when turned a quarter clockwise).
+     */
+    public static int[][] layout(List<double[]> selections, int sheetWidth, int sheetHeight,
+            boolean vertical){
+        int[][] placed;
+        double pos, x, y;
+        int sInd;
+
+        placed = new int[selections.size()][];
+        pos = 0.0;
+        sInd = 0;
+        for(double[] sel : selections){
+            x = Math.min(Math.max(Math.floor(sel[0]), 0.0), sheetWidth);
+            y = Math.min(Math.max(Math.floor(sel[1]), 0.0), sheetHeight);
+            placed[sInd++] = new int[]{(int) x, (int) y,
+                (int) Math.max(Math.min(Math.ceil(sel[2]), sheetWidth) - x, 0.0),
+                (int) Math.max(Math.min(Math.ceil(sel[3]), sheetHeight) - y, 0.0),
+                vertical ? 0 : (int) Math.round(pos), vertical ? (int) Math.round(pos) : 0, 0};
+            pos += vertical ? (sel[3] - sel[1]) : (sel[2] - sel[0]);
+        }
+        return placed;
+    }
+
+    /**
+     * @return the width the placed selection takes on the page.
+     */
+    public static int getPlacedWidth(int[] placed){
+        return (placed[6] != 0) ? placed[3] : placed[2];
+    }
+
+    public static int getPlacedHeight(int[] placed){
+        return (placed[6] != 0) ? placed[2] : placed[3];
+    }
+
+    /**
+     * @param placements {srcX, srcY, width, height, pageX, pageY, rotated}
+     * per selection on the page, within the sheet.
+     * @param scale device pixels per sheet pixel.
+     * @param sheetVersion the version (see getVersion) the sheet was read at.
+     * @return the page of the selections, from the cache or being rendered
+     * from the sheet; the pixels outside the selections are white.
+     */
+    public synchronized Future<Raster> getPage(SheetComposition sheet, int sheetWidth, int sheetHeight,
+            List<int[]> placements, double scale, long sheetVersion){
+        final int[][] placed;
+        int pageW, pageH;
+        String key;
+        CachedPage cached;
+
+        placed = placements.toArray(new int[placements.size()][]);
+        key = key(placed, sheetWidth, sheetHeight) + '@' + scale;
+        cached = pages.get(key);
+        if(cached == null){
+            pageW = 0;
+            pageH = 0;
+            for(int[] sel : placed){
+                pageW = Math.max(pageW, sel[4] + getPlacedWidth(sel));
+                pageH = Math.max(pageH, sel[5] + getPlacedHeight(sel));
+            }
+            final int w = pageW, h = pageH;
+            final int scaledW = getScaledSize(pageW, scale), scaledH = getScaledSize(pageH, scale);
+            cached = new CachedPage(placed, renderers.submit(()->resample(render(sheet, placed, w, h),
+                    scaledW, scaledH)), 4L*scaledW*scaledH);
+            if(sheetVersion == version){
+                pages.put(key, cached);
+                cachedBytes += cached.bytes;
+                evict();
+            }
+        }
+        return cached.page;
+    }
+
+    /**
+     * Forgets the pages showing any of [minX, maxX) x [minY, maxY).
+     */
+    public synchronized void invalidate(int minX, int minY, int maxX, int maxY){
+        Iterator<CachedPage> cached = pages.values().iterator();
+        CachedPage page;
+
+        version++;
+        while(cached.hasNext()){
+            page = cached.next();
+            for(int[] sel : page.placed){
+                if((sel[0] < maxX) && ((sel[0] + sel[2]) > minX) &&
+                        (sel[1] < maxY) && ((sel[1] + sel[3]) > minY)){
+                    cachedBytes -= page.bytes;
+                    cached.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidateAll(){
+        version++;
+        pages.clear();
+        cachedBytes = 0;
+    }
+
+    private void evict(){
+        Iterator<Map.Entry<String, CachedPage>> eldest = pages.entrySet().iterator();
+
+        while((cachedBytes > CACHE_BYTES) && (pages.size() > 1)){
+            cachedBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private static String key(int[][] placed, int sheetWidth, int sheetHeight){
+        StringBuilder key = new StringBuilder();
+
+        key.append(sheetWidth).append('x').append(sheetHeight);
+        for(int[] sel : placed){
+            key.append(':');
+            for(int value : sel){
+                key.append(value).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the number of device pixels covering the sheet pixels.
+     */
+    public static int getScaledSize(int size, double scale){
+        return (int) Math.ceil((size*scale) - 1.0e-9);
+    }
+
+    /**
+     * Area averages when shrinking, interpolates bilinearly when enlarging;
+     * the page is opaque.
+     */
+    private static Raster resample(Raster page, int w, int h){
+        Raster scaled;
+        int[] src, dst;
+        double scaleX, scaleY, x0, x1, y0, y1, fx, fy, weight, sumW, r, g, b;
+        int sx, sy, argb;
+
+        if((w == page.getWidth()) && (h == page.getHeight())){
+            return page;
+        }
+        scaled = new Raster(w, h);
+        if((page.getWidth() == 0) || (page.getHeight() == 0)){
+            scaled.fill(Raster.WHITE);
+            return scaled;
+        }
+        src = page.getPixels();
+        dst = scaled.getPixels();
+        scaleX = page.getWidth()/(double) w;
+        scaleY = page.getHeight()/(double) h;
+        for(int y = 0; y < h; y++){
+            for(int x = 0; x < w; x++){
+                r = 0.0; g = 0.0; b = 0.0; sumW = 0.0;
+                if((scaleX > 1.0) || (scaleY > 1.0)){
+                    //The sheet pixels under the device pixel, weighted by their overlap:
+                    y0 = y*scaleY;
+                    y1 = Math.min(y0 + scaleY, page.getHeight());
+                    x0 = x*scaleX;
+                    x1 = Math.min(x0 + scaleX, page.getWidth());
+                    for(sy = (int) y0; sy < y1; sy++){
+                        fy = Math.min(sy + 1, y1) - Math.max(sy, y0);
+                        for(sx = (int) x0; sx < x1; sx++){
+                            weight = fy*(Math.min(sx + 1, x1) - Math.max(sx, x0));
+                            argb = src[page.offset(sx, sy)];
+                            r += weight*((argb >> 16) & 0xff);
+                            g += weight*((argb >> 8) & 0xff);
+                            b += weight*(argb & 0xff);
+                            sumW += weight;
+                        }
+                    }
+                } else {
+                    fy = Math.max(((y + 0.5)*scaleY) - 0.5, 0.0);
+                    fx = Math.max(((x + 0.5)*scaleX) - 0.5, 0.0);
+                    for(int corner = 0; corner < 4; corner++){
+                        sx = Math.min((int) fx + (corner & 1), page.getWidth() - 1);
+                        sy = Math.min((int) fy + (corner >> 1), page.getHeight() - 1);
+                        weight = (((corner & 1) == 0) ? (1.0 - (fx - (int) fx)) : (fx - (int) fx))*
+                                (((corner >> 1) == 0) ? (1.0 - (fy - (int) fy)) : (fy - (int) fy));
+                        argb = src[page.offset(sx, sy)];
+                        r += weight*((argb >> 16) & 0xff);
+                        g += weight*((argb >> 8) & 0xff);
+                        b += weight*(argb & 0xff);
+                        sumW += weight;
+                    }
+                }
+                dst[scaled.offset(x, y)] = 0xff000000 | ((int) Math.round(r/sumW) << 16) |
+                        ((int) Math.round(g/sumW) << 8) | (int) Math.round(b/sumW);
+            }
+        }
+        return scaled;
+    }
+
+    private static Raster render(SheetComposition sheet, int[][] placed, int pageW, int pageH){
+        Raster page = new Raster(pageW, pageH);
+        int[] pixels = page.getPixels();
+        int[] turned;
+        int offset, argb, paper;
+
+        page.fill(Raster.WHITE);
+        for(int[] sel : placed){
+            if((sel[2] > 0) && (sel[3] > 0)){
+                if(sel[6] == 0){
+                    sheet.getPixels(sel[0], sel[1], sel[2], sel[3], Raster.FORMAT, pixels,
+                            page.offset(sel[4], sel[5]), pageW);
+                } else {
+                    //Turned a quarter clockwise: source row y becomes page column h - 1 - y.
+                    turned = new int[sel[2]*sel[3]];
+                    sheet.getPixels(sel[0], sel[1], sel[2], sel[3], Raster.FORMAT, turned, 0, sel[2]);
+                    for(int y = 0; y < sel[3]; y++){
+                        for(int x = 0; x < sel[2]; x++){
+                            pixels[page.offset(sel[4] + sel[3] - 1 - y, sel[5] + x)] =
+                                    turned[(y*sel[2]) + x];
+                        }
+                    }
+                }
+                //Premultiplied over white adds the paper the alpha leaves:
+                for(int y = sel[5]; y < (sel[5] + getPlacedHeight(sel)); y++){
+                    offset = page.offset(sel[4], y);
+                    for(int x = offset; x < (offset + getPlacedWidth(sel)); x++){
+                        argb = pixels[x];
+                        if((argb >>> 24) != 0xff){
+                            paper = 255 - (argb >>> 24);
+                            pixels[x] = 0xff000000 | ((((argb >> 16) & 0xff) + paper) << 16) |
+                                    ((((argb >> 8) & 0xff) + paper) << 8) | ((argb & 0xff) + paper);
+                        }
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    private static class CachedPage {
+
+        final int[][] placed;
+        final Future<Raster> page;
+        final long bytes;
+
+        CachedPage(int[][] placed, Future<Raster> page, long bytes){
+            this.placed = placed;
+            this.page = page;
+            this.bytes = bytes;
+        }
+    }
+
+}
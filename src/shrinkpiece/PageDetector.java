@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+/**
+ * Finds the paper of a screen print from its row and column projection
+ * profiles. Rows and columns of the page contain mostly paper colored pixels,
+ * the surrounding screen mostly does not. The profiles are counted on the
+ * words of the ink mask, so run time hardly depends on the content of the sheet.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PageDetector {
+
+    private static final int CENTER_WINDOW = 50;
+
+    private PageDetector(){
+    }
+
+    /**
+     * The page is first grown from the center of the sheet over rows and
+     * columns as light as those around it, as the former seed search did. When
+     * that page is smaller than minWidth by minHeight, the longest runs of
+     * the lightest rows and columns of the whole image are tried, and the
+     * first result is kept if neither fits.
+     *
+     * @return {minX, minY, maxX, maxY} of the page, where the bounds lie on the
+     * first non-paper pixel around it (as the former seed search did).
+     */
+    public static int[] detect(InkMask mask, int hGapTolerance, int vGapTolerance,
+            double minWidth, double minHeight){
+        int w, h;
+        int[] rowPaper, colPaper, kBounds, firstBounds;
+
+        w = mask.getWidth();
+        h = mask.getHeight();
+        rowPaper = new int[h];
+        colPaper = new int[w];
+
+        //Both profiles from word-level ink counts:
+        for(int y = 0; y < h; y++){
+            rowPaper[y] = w - mask.rowInk(y);
+        }
+        mask.addColumnInk(colPaper);
+        for(int x = 0; x < w; x++){
+            colPaper[x] = h - colPaper[x];
+        }
+
+        firstBounds = null;
+        for(boolean fromCenter : new boolean[]{true, false}){
+            kBounds = toBounds(findPageRun(colPaper, hGapTolerance, fromCenter),
+                    findPageRun(rowPaper, vGapTolerance, fromCenter), w, h);
+            if(((kBounds[2] - kBounds[0]) >= minWidth) && ((kBounds[3] - kBounds[1]) >= minHeight)){
+                return kBounds;
+            }
+            if(firstBounds == null){
+                firstBounds = kBounds;
+            }
+        }
+        return firstBounds;
+    }
+
+    private static int[] toBounds(int[] colRun, int[] rowRun, int w, int h){
+        int[] kBounds = new int[]{0, 0, w - 1, h - 1};
+
+        if((colRun != null) && (rowRun != null)){
+            kBounds[0] = Math.max(colRun[0] - 1, 0);
+            kBounds[1] = Math.max(rowRun[0] - 1, 0);
+            kBounds[2] = Math.min(colRun[1] + 1, w - 1);
+            kBounds[3] = Math.min(rowRun[1] + 1, h - 1);
+        }
+        return kBounds;
+    }
+
+    /**
+     * Run of profile entries with at least half the paper count of the
+     * lightest entry in the center window (fromCenter) or of the whole
+     * profile. Light bars of a screen print are wider than the page, so they
+     * would set the bar too high for the page itself. Shorter interruptions
+     * than gapTolerance (e.g. staff lines) do not end a run.
+     */
+    private static int[] findPageRun(int[] profile, int gapTolerance, boolean fromCenter){
+        int max, limit, windowStart, windowEnd;
+
+        windowStart = Math.max((profile.length - CENTER_WINDOW)/2, 0);
+        windowEnd = Math.min(windowStart + CENTER_WINDOW, profile.length);
+        max = 0;
+        for(int i = (fromCenter ? windowStart : 0); i < (fromCenter ? windowEnd : profile.length); i++){
+            if(profile[i] > max){
+                max = profile[i];
+            }
+        }
+        if(max == 0){
+            return null;
+        }
+        limit = (max + 1)/2;
+        return fromCenter ? growFromCenter(profile, gapTolerance, limit, windowStart, windowEnd) :
+                findLongestRun(profile, gapTolerance, limit);
+    }
+
+    /**
+     * Grows the run outward from the entry of the center window nearest to
+     * the center, as the former seed search did, until both sides meet a
+     * longer interruption than gapTolerance.
+     */
+    private static int[] growFromCenter(int[] profile, int gapTolerance, int limit,
+            int windowStart, int windowEnd){
+        int center, seed, first, last, next;
+
+        center = profile.length/2;
+        seed = -1;
+        for(int d = 0; (seed < 0) && (((center - d) >= windowStart) || ((center + d) < windowEnd)); d++){
+            if(((center - d) >= windowStart) && (profile[center - d] >= limit)){
+                seed = center - d;
+            } else if(((center + d) < windowEnd) && (profile[center + d] >= limit)){
+                seed = center + d;
+            }
+        }
+        if(seed < 0){
+            return null;
+        }
+        first = seed;
+        next = first - 1;
+        while((next >= 0) && ((first - next) <= gapTolerance)){
+            if(profile[next] >= limit){
+                first = next;
+            }
+            next--;
+        }
+        last = seed;
+        next = last + 1;
+        while((next < profile.length) && ((next - last) <= gapTolerance)){
+            if(profile[next] >= limit){
+                last = next;
+            }
+            next++;
+        }
+        return new int[]{first, last};
+    }
+
+    /**
+     * Longest run of entries at or above limit anywhere in the profile.
+     */
+    private static int[] findLongestRun(int[] profile, int gapTolerance, int limit){
+        int runStart, lastIn;
+        int[] best;
+
+        best = null;
+        runStart = -1;
+        lastIn = -1;
+        for(int i = 0; i <= profile.length; i++){
+            if((i < profile.length) && (profile[i] >= limit) &&
+                    ((runStart < 0) || ((i - lastIn) <= gapTolerance))){
+                if(runStart < 0){
+                    runStart = i;
+                }
+                lastIn = i;
+            } else if((i == profile.length) || (profile[i] >= limit)){
+                if((runStart >= 0) && ((best == null) || ((lastIn - runStart) > (best[1] - best[0])))){
+                    best = new int[]{runStart, lastIn};
+                }
+                runStart = (i < profile.length) ? i : -1;
+                lastIn = i;
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * Packs print selections onto as few pages as it can find within a time
+ * budget. Selections are laid out in shelves (rows of selections, filled from
+ * the left) in any order, optionally turned a quarter, as they would be by
+ * hand on a sheet of paper; the first packing sorts by height, later ones
+ * try shuffled orders and keep the one with the fewest pages.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PagePacker {
+
+    private final int pageWidth, pageHeight;
+    private final boolean rotationAllowed;
+    private final long timeBudgetMillis;
+
+    /**
+     * @param pageWidth printable width of a page, in sheet pixels
+     * @param pageHeight printable height of a page, in sheet pixels
+     */
+    public PagePacker(double pageWidth, double pageHeight, boolean rotationAllowed,
+            long timeBudgetMillis){
+        this.pageWidth = (int) Math.floor(pageWidth);
+        this.pageHeight = (int) Math.floor(pageHeight);
+        this.rotationAllowed = rotationAllowed;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * @param selections {minX, minY, maxX, maxY} per selection.
+     * @param onPageCount told the page count of every better packing found,
+     * on the calling thread; may be null.
+     * @return per page the placements {srcX, srcY, width, height, pageX, pageY,
+     * rotated} (see PageCache); a selection larger than a page gets a page of
+     * its own.
+     */
+    public ArrayList<ArrayList<int[]>> pack(List<double[]> selections, int sheetWidth,
+            int sheetHeight, IntConsumer onPageCount){
+        ArrayList<int[]> items;
+        ArrayList<Integer> order;
+        ArrayList<ArrayList<int[]>> best, tried;
+        Random shuffler;
+        long deadline;
+        int lowerBound;
+        long area;
+
+        deadline = System.currentTimeMillis() + timeBudgetMillis;
+        items = new ArrayList<int[]>();
+        area = 0;
+        for(int[] placed : PageCache.layout(selections, sheetWidth, sheetHeight, true)){
+            if((placed[2] > 0) && (placed[3] > 0)){
+                items.add(placed);
+                area += (long) placed[2]*placed[3];
+            }
+        }
+        order = new ArrayList<Integer>();
+        for(int iInd = 0; iInd < items.size(); iInd++){
+            order.add(iInd);
+        }
+        //Tallest first fills the shelves best on average:
+        final ArrayList<int[]> sorted = items;
+        order.sort((i1, i2)->Integer.compare(shortSide(sorted.get(i2)),
+                shortSide(sorted.get(i1))));
+        best = packInOrder(items, order);
+        if(onPageCount != null){
+            onPageCount.accept(best.size());
+        }
+        lowerBound = (int) Math.max(Math.ceil(area/((double) Math.max(pageWidth, 1)*
+                Math.max(pageHeight, 1))), 1);
+        shuffler = new Random(items.size());
+        while((best.size() > lowerBound) && (System.currentTimeMillis() < deadline)){
+            Collections.shuffle(order, shuffler);
+            tried = packInOrder(items, order);
+            if(tried.size() < best.size()){
+                best = tried;
+                if(onPageCount != null){
+                    onPageCount.accept(best.size());
+                }
+            }
+        }
+        return best;
+    }
+
+    private int shortSide(int[] item){
+        return rotationAllowed ? Math.min(item[2], item[3]) : item[3];
+    }
+
+    /**
+     * First fit in shelves: every selection goes on the first page it fits
+     * on, on the shelf it leaves the least height of unused, or else on a new
+     * shelf, turned the way that keeps it low.
+     */
+    private ArrayList<ArrayList<int[]>> packInOrder(ArrayList<int[]> items, List<Integer> order){
+        ArrayList<ArrayList<int[]>> pages;
+        ArrayList<ArrayList<int[]>> shelvesPerPage;
+        ArrayList<int[]> shelves;
+        int[] item, fit, shelf;
+        int w, h, rot, bestWaste, lowest, newShelf;
+        boolean placed;
+
+        pages = new ArrayList<ArrayList<int[]>>();
+        //Shelves as {y, height, used width}:
+        shelvesPerPage = new ArrayList<ArrayList<int[]>>();
+        for(int iInd : order){
+            item = items.get(iInd);
+            placed = false;
+            for(int pInd = 0; !placed && (pInd < pages.size()); pInd++){
+                shelves = shelvesPerPage.get(pInd);
+                fit = null;
+                bestWaste = Integer.MAX_VALUE;
+                lowest = Integer.MAX_VALUE;
+                newShelf = -1;
+                for(rot = 0; rot < (rotationAllowed ? 2 : 1); rot++){
+                    w = (rot == 0) ? item[2] : item[3];
+                    h = (rot == 0) ? item[3] : item[2];
+                    for(int sInd = 0; sInd < shelves.size(); sInd++){
+                        shelf = shelves.get(sInd);
+                        if((h <= shelf[1]) && ((shelf[0] + h) <= pageHeight) &&
+                                ((shelf[2] + w) <= pageWidth) && ((shelf[1] - h) < bestWaste)){
+                            bestWaste = shelf[1] - h;
+                            fit = new int[]{sInd, rot};
+                        }
+                    }
+                }
+                //Otherwise a new shelf below the last one, as low as can be:
+                for(rot = 0; rot < (rotationAllowed ? 2 : 1); rot++){
+                    w = (rot == 0) ? item[2] : item[3];
+                    h = (rot == 0) ? item[3] : item[2];
+                    if((w <= pageWidth) && ((top(shelves) + h) <= pageHeight) && (h < lowest)){
+                        lowest = h;
+                        newShelf = rot;
+                    }
+                }
+                if((fit == null) && (newShelf >= 0)){
+                    fit = new int[]{-1, newShelf};
+                }
+                if(fit != null){
+                    w = (fit[1] == 0) ? item[2] : item[3];
+                    h = (fit[1] == 0) ? item[3] : item[2];
+                    if(fit[0] < 0){
+                        shelves.add(new int[]{top(shelves), h, 0});
+                        fit[0] = shelves.size() - 1;
+                    }
+                    shelf = shelves.get(fit[0]);
+                    pages.get(pInd).add(new int[]{item[0], item[1], item[2], item[3],
+                        shelf[2], shelf[0], fit[1]});
+                    shelf[2] += w;
+                    placed = true;
+                }
+            }
+            if(!placed){
+                rot = (rotationAllowed && fits(item[3], item[2]) &&
+                        (!fits(item[2], item[3]) || (item[2] < item[3]))) ? 1 : 0;
+                w = (rot == 0) ? item[2] : item[3];
+                h = (rot == 0) ? item[3] : item[2];
+                shelves = new ArrayList<int[]>();
+                shelves.add(new int[]{0, h, w});
+                shelvesPerPage.add(shelves);
+                pages.add(new ArrayList<int[]>());
+                pages.get(pages.size() - 1).add(new int[]{item[0], item[1], item[2], item[3],
+                    0, 0, rot});
+            }
+        }
+        return pages;
+    }
+
+    private boolean fits(int w, int h){
+        return (w <= pageWidth) && (h <= pageHeight);
+    }
+
+    private static int top(ArrayList<int[]> shelves){
+        int[] last;
+
+        if(shelves.isEmpty()){
+            return 0;
+        }
+        last = shelves.get(shelves.size() - 1);
+        return last[0] + last[1];
+    }
+
+}
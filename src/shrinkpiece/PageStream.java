@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Pages handed out one at a time, with only a few rendered ahead (see
+ * PageCache), so printing or exporting a long book takes no more memory than
+ * a short one.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PageStream {
+
+    public static final int PAGES_AHEAD = 2;
+    private final PageCache cache;
+    private final SheetComposition sheet;
+    private final int sheetWidth, sheetHeight, lastPage;
+    private final List<? extends List<int[]>> pages;
+    private final double scale;
+    private final long sheetVersion;
+    private final ArrayDeque<Future<Raster>> ahead;
+    private int nextPage, requestedPage;
+
+    /**
+     * Starts rendering the first pages of [firstPage, lastPage] right away.
+     * The sheet is the one the cache holds pages of now; edits after that
+     * leave the pages of the stream as they were.
+     *
+     * @param pages placements per page (see PagePacker).
+     */
+    public PageStream(PageCache cache, SheetComposition sheet, int sheetWidth, int sheetHeight,
+            List<? extends List<int[]>> pages, int firstPage, int lastPage, double scale){
+        this.cache = cache;
+        this.sheet = sheet;
+        this.sheetWidth = sheetWidth;
+        this.sheetHeight = sheetHeight;
+        this.pages = pages;
+        this.lastPage = Math.min(lastPage, pages.size() - 1);
+        this.scale = scale;
+        sheetVersion = cache.getVersion();
+        ahead = new ArrayDeque<Future<Raster>>();
+        nextPage = Math.max(firstPage, 0);
+        requestedPage = nextPage;
+        requestAhead();
+    }
+
+    public boolean hasNext(){
+        return nextPage <= lastPage;
+    }
+
+    /**
+     * @return the number of pages still to be taken.
+     */
+    public int getRemaining(){
+        return Math.max(lastPage - nextPage + 1, 0);
+    }
+
+    /**
+     * @return the index of the page next() returns.
+     */
+    public int getNextIndex(){
+        return nextPage;
+    }
+
+    /**
+     * Waits for the next page and has the one after the pages ahead rendered.
+     * An interrupt while waiting ends the stream (the interrupt stays set);
+     * the pages ahead are left to the cache.
+     *
+     * @return the page, or null when rendering it failed or was interrupted.
+     */
+    public Raster next(){
+        Future<Raster> page;
+
+        page = ahead.poll();
+        nextPage++;
+        requestAhead();
+        try {
+            return page.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ahead.clear();
+            nextPage = lastPage + 1;
+            requestedPage = nextPage;
+            return null;
+        } catch (ExecutionException ex) {
+            System.out.println("Page could not be rendered: " + ex);
+            return null;
+        }
+    }
+
+    private void requestAhead(){
+        while((requestedPage <= lastPage) && (requestedPage < (nextPage + PAGES_AHEAD))){
+            ahead.add(cache.getPage(sheet, sheetWidth, sheetHeight, pages.get(requestedPage),
+                    scale, sheetVersion));
+            requestedPage++;
+        }
+    }
+
+}
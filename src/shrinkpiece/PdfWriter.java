@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PDF file page by page, without a printer driver. Images are coded
+ * bilevel (CCITT Group 4) and written as they are placed, so nothing but the
+ * page being written is held in memory; the page tree and cross reference
+ * table follow on close. Coordinates are in points from the
+ * top left corner of the page.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PdfWriter implements Closeable {
+
+    public static final double POINTS_PER_MM = 72.0/25.4;
+    public static final double A5_WIDTH = 148.0*POINTS_PER_MM, A5_HEIGHT = 210.0*POINTS_PER_MM;
+    private static final int CATALOG = 1, PAGE_TREE = 2;
+    private final CountingStream out;
+    private final ArrayList<Long> offsets;
+    private final ArrayList<Integer> pageObjects;
+    private double pageWidth, pageHeight;
+    private StringBuilder content, xObjects;
+    private int imagesOnPage;
+
+    public PdfWriter(File pdfFile) throws IOException {
+        out = new CountingStream(new BufferedOutputStream(new FileOutputStream(pdfFile)));
+        offsets = new ArrayList<Long>();
+        pageObjects = new ArrayList<Integer>();
+        content = null;
+        //Catalog and page tree are written last, under the first numbers:
+        newObject();
+        newObject();
+        write("%PDF-1.4\n");
+        out.write(new byte[]{'%', (byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+    }
+
+    public void beginPage(double widthPoints, double heightPoints) throws IOException {
+        if(content != null){
+            endPage();
+        }
+        pageWidth = widthPoints;
+        pageHeight = heightPoints;
+        content = new StringBuilder();
+        xObjects = new StringBuilder();
+        imagesOnPage = 0;
+    }
+
+    /**
+     * Places the raster in the rectangle as black ink on white, coded with
+     * CCITT Group 4: the pixels darker than the paper threshold are ink.
+     */
+    public void drawBilevelImage(Raster image, int paperThreshold, double x, double y,
+            double w, double h) throws IOException {
+        int imageObject;
+        byte[] coded;
+
+        if((image.getWidth() == 0) || (image.getHeight() == 0)){
+            return;
+        }
+        coded = CcittG4Encoder.encode(image, paperThreshold);
+        imageObject = newObject();
+        beginObject(imageObject);
+        write("<< /Type /XObject /Subtype /Image /Width " + image.getWidth() +
+                " /Height " + image.getHeight() + " /ColorSpace /DeviceGray /BitsPerComponent 1" +
+                " /Filter /CCITTFaxDecode /DecodeParms << /K -1 /Columns " + image.getWidth() +
+                " /Rows " + image.getHeight() + " >> /Length " + coded.length + " >>\nstream\n");
+        out.write(coded);
+        write("\nendstream\nendobj\n");
+        placeXObject(imageObject, x, y, w, h);
+    }
+
+    /**
+     * Places an image object already written on the page.
+     */
+    private void placeXObject(int imageObject, double x, double y, double w, double h){
+        imagesOnPage++;
+        xObjects.append(" /Im").append(imagesOnPage).append(' ').append(imageObject).append(" 0 R");
+        content.append("q ").append(num(w)).append(" 0 0 ").append(num(h)).append(' ')
+                .append(num(x)).append(' ').append(num(pageHeight - y - h)).append(" cm /Im")
+                .append(imagesOnPage).append(" Do Q\n");
+    }
+
+    /**
+     * Strokes a dashed rectangle, as a cutting guide.
+     */
+    public void strokeDashedRect(double x, double y, double w, double h, double lineWidth){
+        content.append("q ").append(num(lineWidth)).append(" w [").append(num(lineWidth))
+                .append(' ').append(num(lineWidth)).append("] 0 d ").append(num(x)).append(' ')
+                .append(num(pageHeight - y - h)).append(' ').append(num(w)).append(' ')
+                .append(num(h)).append(" re S Q\n");
+    }
+
+    public void endPage() throws IOException {
+        int contentObject, pageObject;
+        byte[] deflated;
+
+        if(content == null){
+            return;
+        }
+        deflated = deflate(content.toString().getBytes(StandardCharsets.US_ASCII));
+        contentObject = newObject();
+        beginObject(contentObject);
+        write("<< /Filter /FlateDecode /Length " + deflated.length + " >>\nstream\n");
+        out.write(deflated);
+        write("\nendstream\nendobj\n");
+        pageObject = newObject();
+        beginObject(pageObject);
+        write("<< /Type /Page /Parent " + PAGE_TREE + " 0 R /MediaBox [0 0 " + num(pageWidth) +
+                " " + num(pageHeight) + "] /Resources << /XObject <<" + xObjects +
+                " >> >> /Contents " + contentObject + " 0 R >>\nendobj\n");
+        pageObjects.add(pageObject);
+        content = null;
+        out.flush();
+    }
+
+    public int getPageCount(){
+        return pageObjects.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        StringBuilder kids;
+        long xref;
+
+        try {
+            endPage();
+            kids = new StringBuilder();
+            for(int page : pageObjects){
+                kids.append(' ').append(page).append(" 0 R");
+            }
+            beginObject(PAGE_TREE);
+            write("<< /Type /Pages /Kids [" + kids + " ] /Count " + pageObjects.size() + " >>\nendobj\n");
+            beginObject(CATALOG);
+            write("<< /Type /Catalog /Pages " + PAGE_TREE + " 0 R >>\nendobj\n");
+            xref = out.getCount();
+            write("xref\n0 " + (offsets.size() + 1) + "\n0000000000 65535 f \n");
+            for(long offset : offsets){
+                write(String.format(Locale.ROOT, "%010d 00000 n \n", offset));
+            }
+            write("trailer\n<< /Size " + (offsets.size() + 1) + " /Root " + CATALOG +
+                    " 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    protected final int newObject(){
+        offsets.add(-1L);
+        return offsets.size();
+    }
+
+    protected final void beginObject(int object) throws IOException {
+        offsets.set(object - 1, out.getCount());
+        write(object + " 0 obj\n");
+    }
+
+    protected final void write(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] deflate(byte[] data){
+        Deflater deflater;
+        byte[] packed;
+        int size;
+
+        deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        packed = new byte[data.length + 64];
+        size = 0;
+        while(!deflater.finished()){
+            if(size == packed.length){
+                packed = Arrays.copyOf(packed, 2*packed.length);
+            }
+            size += deflater.deflate(packed, size, packed.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(packed, size);
+    }
+
+    private static String num(double value){
+        String formatted = String.format(Locale.ROOT, "%.3f", value);
+        //Trailing zeroes only take up room:
+        formatted = formatted.replaceAll("0+$", "");
+        return formatted.endsWith(".") ? formatted.substring(0, formatted.length() - 1) : formatted;
+    }
+
+    private static class CountingStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingStream(OutputStream target){
+            super(target);
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount(){
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.scene.Group;
+import javafx.scene.effect.DropShadow;
+import javafx.scene.image.ImageView;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.shape.StrokeType;
+
+/**
+ * Vertical strip of stored pieces. Only the cells in view exist as nodes;
+ * they are reused for whichever pieces scroll into view, so adding or
+ * removing a piece only touches the cells in view. Pieces are prepared
+ * (thumbnail and packing) on a worker thread and show up when ready.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PieceStrip extends Group {
+
+    public static final double CELL_PITCH = ShrunkPiece.HSuP + 20.0;
+    private final ArrayList<ShrunkPiece> pieces;
+    private final ArrayList<PieceCell> cells;
+    private final ExecutorService preparer = Executors.newSingleThreadExecutor((r)->{
+        Thread preparerThread = new Thread(r, "piece-preparation");
+        preparerThread.setDaemon(true);
+        return preparerThread;
+    });
+    private double viewportHeight, offset;
+    private Consumer<ShrunkPiece> onPieceSelected;
+
+    public PieceStrip(){
+        pieces = new ArrayList<ShrunkPiece>();
+        cells = new ArrayList<PieceCell>();
+        viewportHeight = 0.0;
+        offset = 0.0;
+        onPieceSelected = null;
+
+        setOnScroll((sc)->{
+            setOffset(offset - sc.getDeltaY());
+        });
+    }
+
+    public void setOnPieceSelected(Consumer<ShrunkPiece> handler){
+        onPieceSelected = handler;
+    }
+
+    public void setViewportHeight(double h){
+        viewportHeight = Math.max(h, 0.0);
+        setOffset(offset);
+    }
+
+    private void setOffset(double newOffset){
+        double maxOffset = Math.max((pieces.size()*CELL_PITCH) - viewportHeight, 0.0);
+        offset = Math.max(Math.min(newOffset, maxOffset), 0.0);
+        layoutCells();
+    }
+
+    public int size(){
+        return pieces.size();
+    }
+
+    public int indexOf(ShrunkPiece piece){
+        return pieces.indexOf(piece);
+    }
+
+    public void add(ShrunkPiece piece){
+        add(pieces.size(), piece);
+    }
+
+    public void add(int ind, ShrunkPiece piece){
+        pieces.add(ind, piece);
+        if(!piece.isPrepared()){
+            preparer.execute(()->{
+                piece.prepare();
+                Platform.runLater(()->{
+                    showPrepared(piece);
+                });
+            });
+        }
+        setOffset(offset);
+    }
+
+    public void remove(ShrunkPiece piece){
+        if(pieces.remove(piece)){
+            setOffset(offset);
+        }
+    }
+
+    public void removeLast(){
+        if(!pieces.isEmpty()){
+            pieces.remove(pieces.size() - 1);
+            setOffset(offset);
+        }
+    }
+
+    private void showPrepared(ShrunkPiece piece){
+        for(PieceCell cell : cells){
+            if(cell.piece == piece){
+                cell.show(piece);
+            }
+        }
+    }
+
+    /**
+     * Gives the cells in view their pieces, creating cells only when more
+     * fit in view than before.
+     */
+    private void layoutCells(){
+        int first, inView;
+        PieceCell cell;
+
+        first = (int) (offset/CELL_PITCH);
+        inView = Math.min((int) Math.ceil(viewportHeight/CELL_PITCH) + 1, pieces.size() - first);
+        while(cells.size() < inView){
+            cell = new PieceCell();
+            cells.add(cell);
+            getChildren().add(cell);
+        }
+        for(int cInd = 0; cInd < cells.size(); cInd++){
+            cell = cells.get(cInd);
+            if(cInd < inView){
+                cell.show(pieces.get(first + cInd));
+                cell.setTranslateX(0.0);
+                cell.setTranslateY(((first + cInd)*CELL_PITCH) - offset);
+                cell.setVisible(true);
+            } else {
+                cell.show(null);
+                cell.setVisible(false);
+            }
+        }
+    }
+
+    private class PieceCell extends Group {
+
+        private final double doubleBorderWidth = 2.0*ShrunkPiece.THUMB_BORDER;
+        private ShrunkPiece piece;
+        private ImageView sPPreview;
+        private Rectangle borderSPPrev;
+        private DropShadow suPieceShadow;
+
+        PieceCell(){
+            piece = null;
+            borderSPPrev = new Rectangle(0.0,0.0,ShrunkPiece.WSuP, ShrunkPiece.HSuP);
+            borderSPPrev.setFill(Color.TRANSPARENT);
+            borderSPPrev.setStroke(Color.NAVY);
+            borderSPPrev.setStrokeWidth(0.5*doubleBorderWidth);
+            borderSPPrev.setStrokeType(StrokeType.INSIDE);
+
+            sPPreview = new ImageView();
+            sPPreview.setTranslateX(0.5*doubleBorderWidth);
+            sPPreview.setTranslateY(0.5*doubleBorderWidth);
+            sPPreview.setFitWidth(ShrunkPiece.WSuP - doubleBorderWidth);
+            sPPreview.setFitHeight(ShrunkPiece.HSuP - doubleBorderWidth);
+
+            getChildren().addAll(sPPreview, borderSPPrev);
+
+            suPieceShadow = new DropShadow();
+            suPieceShadow.setOffsetX(3.0);
+            suPieceShadow.setOffsetY(3.0);
+
+            setOnMouseEntered((mE)->{
+                setEffect(suPieceShadow);
+            });
+            setOnMouseExited((mEx)->{
+                setEffect(null);
+            });
+            setOnMousePressed((mP)->{
+                setEffect(null);
+                if((piece != null) && (onPieceSelected != null)){
+                    onPieceSelected.accept(piece);
+                }
+            });
+        }
+
+        void show(ShrunkPiece shownPiece){
+            piece = shownPiece;
+            sPPreview.setImage((piece != null) ? piece.getThumbnail() : null);
+        }
+    }
+
+}
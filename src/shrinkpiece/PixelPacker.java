@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless packing of pixel rows: each row is XOR-ed with the row above,
+ * which leaves (mostly) zeroes on paper and along staff lines, and the result
+ * is deflated.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PixelPacker {
+
+    private PixelPacker(){
+    }
+
+    /**
+     * @return the packed pixels [offset, offset + length), rows of width.
+     */
+    public static byte[] pack(int[] pixels, int offset, int length, int width){
+        int[] delta;
+        byte[] buffer, packed;
+        Deflater deflater;
+        int size;
+
+        delta = Arrays.copyOfRange(pixels, offset, offset + length);
+        for(int ind = length - 1; ind >= width; ind--){
+            delta[ind] ^= delta[ind - width];
+        }
+        buffer = new byte[4*length];
+        ByteBuffer.wrap(buffer).asIntBuffer().put(delta);
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(buffer);
+        deflater.finish();
+        size = 0;
+        packed = new byte[Math.max(buffer.length/8, 64)];
+        while(!deflater.finished()){
+            if(size == packed.length){
+                packed = Arrays.copyOf(packed, 2*packed.length);
+            }
+            size += deflater.deflate(packed, size, packed.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(packed, size);
+    }
+
+    /**
+     * Unpacks length pixels into [offset, offset + length) of the array.
+     */
+    public static void unpack(byte[] packed, int[] pixels, int offset, int length, int width){
+        byte[] buffer;
+        Inflater inflater;
+        int size, inflated;
+
+        buffer = new byte[4*length];
+        inflater = new Inflater();
+        inflater.setInput(packed);
+        size = 0;
+        try {
+            while((size < buffer.length) && !inflater.finished()){
+                inflated = inflater.inflate(buffer, size, buffer.length - size);
+                //Truncated input would keep the loop waiting for more:
+                if((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary())){
+                    throw new IllegalStateException("Corrupt packed pixels: input ends after "
+                            + size + " of " + buffer.length + " bytes");
+                }
+                size += inflated;
+            }
+            if(size < buffer.length){
+                throw new IllegalStateException("Corrupt packed pixels: input ends after "
+                        + size + " of " + buffer.length + " bytes");
+            }
+        } catch (DataFormatException ex){
+            throw new IllegalStateException("Corrupt packed pixels: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer.wrap(buffer).asIntBuffer().get(pixels, offset, length);
+        for(int ind = offset + width; ind < (offset + length); ind++){
+            pixels[ind] ^= pixels[ind - width];
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.scene.shape.Polygon;
+
+/**
+ * Pixel spans of a (lasso) polygon, rasterized once with an edge table and
+ * an active edge list. A pixel (x, y) lies in a span exactly when
+ * Polygon.contains(x - offsetX, y - offsetY) holds for the untransformed
+ * polygon (non-zero winding, crossings to the right of the point).
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PolygonSpans {
+
+    private static final int[] NO_SPANS = new int[0];
+    private final int minRow, maxRow;
+    private final int[][] rowSpans;
+
+    public PolygonSpans(Polygon gon){
+        this(gon.getPoints(), 0.0, 0.0);
+    }
+
+    /**
+     * @param points x, y pairs as in Polygon.getPoints()
+     * @param offsetX added to every x, as a translation of the polygon
+     * @param offsetY added to every y
+     */
+    public PolygonSpans(List<Double> points, double offsetX, double offsetY){
+        int nPoints, nEdges, top, bottom, next, nActive, winding, spanStart, nSpans;
+        double[] edges, crossings;
+        int[] dirs, order, active, spans;
+        double x0, y0, x1, y1, yMin, yMax;
+        ArrayList<Integer> byTop;
+
+        nPoints = points.size()/2;
+        top = Integer.MAX_VALUE;
+        bottom = Integer.MIN_VALUE;
+        //Edges as {x0, y0, x1, y1}, horizontal ones never cross a row:
+        edges = new double[nPoints*4];
+        nEdges = 0;
+        for(int pInd = 0; (nPoints > 2) && (pInd < nPoints); pInd++){
+            next = (pInd + 1) % nPoints;
+            x0 = points.get(2*pInd) + offsetX;
+            y0 = points.get((2*pInd) + 1) + offsetY;
+            x1 = points.get(2*next) + offsetX;
+            y1 = points.get((2*next) + 1) + offsetY;
+            if((y0 != y1) && !Double.isNaN(x0 + y0 + x1 + y1)){
+                edges[4*nEdges] = x0;
+                edges[(4*nEdges) + 1] = y0;
+                edges[(4*nEdges) + 2] = x1;
+                edges[(4*nEdges) + 3] = y1;
+                nEdges++;
+                top = Math.min(top, firstRow(Math.min(y0, y1)));
+                bottom = Math.max(bottom, firstRow(Math.max(y0, y1)) - 1);
+            }
+        }
+        if(nEdges == 0){
+            minRow = 0;
+            maxRow = -1;
+            rowSpans = new int[0][];
+            return;
+        }
+        minRow = top;
+        maxRow = bottom;
+        rowSpans = new int[maxRow - minRow + 1][];
+
+        //Edge table: edges ordered by their first row.
+        byTop = new ArrayList<Integer>(nEdges);
+        for(int eInd = 0; eInd < nEdges; eInd++){
+            byTop.add(eInd);
+        }
+        final double[] allEdges = edges;
+        byTop.sort((e1, e2)->Integer.compare(
+                firstRow(Math.min(allEdges[(4*e1) + 1], allEdges[(4*e1) + 3])),
+                firstRow(Math.min(allEdges[(4*e2) + 1], allEdges[(4*e2) + 3]))));
+
+        active = new int[nEdges];
+        crossings = new double[nEdges];
+        dirs = new int[nEdges];
+        order = new int[nEdges];
+        nActive = 0;
+        next = 0;
+        for(int row = minRow; row <= maxRow; row++){
+            //Edges starting at this row join, finished ones leave:
+            while((next < nEdges) && (firstRow(Math.min(edges[(4*byTop.get(next)) + 1],
+                    edges[(4*byTop.get(next)) + 3])) <= row)){
+                active[nActive++] = byTop.get(next++);
+            }
+            for(int aInd = nActive - 1; aInd >= 0; aInd--){
+                yMax = Math.max(edges[(4*active[aInd]) + 1], edges[(4*active[aInd]) + 3]);
+                if(row >= yMax){
+                    active[aInd] = active[--nActive];
+                }
+            }
+            for(int aInd = 0; aInd < nActive; aInd++){
+                crossings[aInd] = crossing(edges, active[aInd], row);
+                dirs[aInd] = (edges[(4*active[aInd]) + 1] < edges[(4*active[aInd]) + 3]) ? 1 : -1;
+                order[aInd] = aInd;
+            }
+            //Insertion sort of the few crossings of a row:
+            for(int i = 1; i < nActive; i++){
+                int o = order[i];
+                int j = i - 1;
+                while((j >= 0) && (crossings[order[j]] > crossings[o])){
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = o;
+            }
+            //Pixels from a crossing up to (not including) the next one share a winding:
+            spans = new int[nActive*2];
+            nSpans = 0;
+            winding = 0;
+            spanStart = Integer.MIN_VALUE;
+            for(int i = 0; i < nActive; i++){
+                winding -= dirs[order[i]];
+                if((winding != 0) && (spanStart == Integer.MIN_VALUE)){
+                    spanStart = firstColumn(crossings[order[i]]);
+                } else if((winding == 0) && (spanStart != Integer.MIN_VALUE)){
+                    if(firstColumn(crossings[order[i]]) > spanStart){
+                        spans[nSpans++] = spanStart;
+                        spans[nSpans++] = firstColumn(crossings[order[i]]);
+                    }
+                    spanStart = Integer.MIN_VALUE;
+                }
+            }
+            rowSpans[row - minRow] = (nSpans == 0) ? NO_SPANS : Arrays.copyOf(spans, nSpans);
+        }
+    }
+
+    /**
+     * Intercept of the edge with the row, clamped to the x range of the edge
+     * as the containment test treats points beside an edge.
+     */
+    private static double crossing(double[] edges, int eInd, int row){
+        double x0, y0, x1, y1, xC;
+
+        x0 = edges[4*eInd];
+        y0 = edges[(4*eInd) + 1];
+        x1 = edges[(4*eInd) + 2];
+        y1 = edges[(4*eInd) + 3];
+        xC = x0 + ((row - y0)*(x1 - x0)/(y1 - y0));
+        return Math.max(Math.min(xC, Math.max(x0, x1)), Math.min(x0, x1));
+    }
+
+    /**
+     * @return the first integer row at or below y.
+     */
+    private static int firstRow(double y){
+        return (int) Math.ceil(y);
+    }
+
+    /**
+     * @return the first integer column at or right of a crossing.
+     */
+    private static int firstColumn(double x){
+        return (int) Math.ceil(x);
+    }
+
+    public boolean isEmpty(){
+        return maxRow < minRow;
+    }
+
+    public int getMinRow(){
+        return minRow;
+    }
+
+    public int getMaxRow(){
+        return maxRow;
+    }
+
+    /**
+     * @return {start, end, start, end, ...} of the row, ends exclusive.
+     */
+    public int[] getSpans(int row){
+        if((row < minRow) || (row > maxRow)){
+            return NO_SPANS;
+        }
+        return rowSpans[row - minRow];
+    }
+
+    public boolean contains(int x, int row){
+        int[] spans = getSpans(row);
+        for(int sInd = 0; sInd < spans.length; sInd += 2){
+            if((x >= spans[sInd]) && (x < spans[sInd + 1])){
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+/**
+ * Small window following a print job spooling in the background, from which
+ * it can be cancelled; it closes when the job is done.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class PrintProgress extends Stage {
+    
+    private final ProgressBar pagesBar;
+    private final Label pageLabel;
+    private final Button cancelButton;
+    
+    public PrintProgress(Task<?> printing){
+        VBox content;
+        
+        pagesBar = new ProgressBar();
+        pagesBar.setPrefWidth(240.0);
+        pagesBar.progressProperty().bind(printing.progressProperty());
+        pageLabel = new Label();
+        pageLabel.textProperty().bind(printing.messageProperty());
+        cancelButton = new Button("Annuleren");
+        cancelButton.setOnAction((ac)->{
+            cancelButton.setDisable(true);
+            printing.cancel();
+        });
+        content = new VBox(8.0, pageLabel, pagesBar, cancelButton);
+        content.setPadding(new Insets(12.0));
+        
+        printing.stateProperty().addListener((st, oSt, nSt)->{
+            if(nSt.equals(Worker.State.SUCCEEDED) || nSt.equals(Worker.State.CANCELLED) ||
+                    nSt.equals(Worker.State.FAILED)){
+                close();
+            }
+        });
+        setScene(new Scene(content));
+        setResizable(false);
+        setTitle("Afdrukken");
+    }
+    
+}
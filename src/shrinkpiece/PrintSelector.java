@@ -17,17 +17,22 @@
 package shrinkpiece;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.geometry.Bounds;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
 /**
@@ -46,6 +51,19 @@ public class PrintSelector extends Stage {
     private ContextMenu cMenu;
     private ArrayList<PrintSelection> marchSelections;
     private static PrintSelection selectedPSel;
+    private InkIntegral inkCounts;
+    private CheckMenuItem rotationAllowed;
+    private double pageW, pageH;
+    private int packRequest;
+    private ArrayList<ArrayList<int[]>> packedPages;
+    private final int SNAP_ROWS = 12;
+    private final long PACKING_MILLIS = 200;
+    private final String TITLE = "Printselectie";
+    private static final ExecutorService packer = Executors.newSingleThreadExecutor((r)->{
+        Thread packerThread = new Thread(r, "page-packing");
+        packerThread.setDaemon(true);
+        return packerThread;
+    });
     
     public PrintSelector(){
         scrollPrev = new ScrollPane();     
@@ -56,6 +74,10 @@ public class PrintSelector extends Stage {
         cMenuButton = new Button();
         cMenu = new ContextMenu();
         selectedPSel = null;
+        inkCounts = null;
+        pageW = 0.0; pageH = 0.0;
+        packRequest = 0;
+        packedPages = null;
         
         sW = 0.0; sH = 0.0;
         cW = 0.0; cH = 0.0;        
@@ -97,8 +119,14 @@ public class PrintSelector extends Stage {
         delSel.setOnAction((ac)->{ 
             marchSelections.remove(selectedPSel);      
             scPaneContent.getChildren().remove(selectedPSel);
+            countPages();
         });
         cMenu.getItems().add(delSel);
+        rotationAllowed = new CheckMenuItem("Printselecties mogen gedraaid");
+        rotationAllowed.setOnAction((ac)->{
+            countPages();
+        });
+        cMenu.getItems().add(rotationAllowed);
         
         scPaneContent.getChildren().add(cMenuButton);    
         
@@ -109,7 +137,7 @@ public class PrintSelector extends Stage {
         scrollPrev.setContent(scPaneContent);
         
         setScene(previewScene);
-        setTitle("Printselectie");
+        setTitle(TITLE);
     }
     
     public void setContent(Image printContent, Bounds marchBounds){
@@ -127,6 +155,77 @@ public class PrintSelector extends Stage {
         addMarchSelections();
     }
     
+    /**
+     * Ink sums of the print content, to keep selections from cutting through
+     * notes: edges that do are marked red and a dragged selection snaps to
+     * the nearest blank row.
+     */
+    public void setInkCounts(InkIntegral contentInk){
+        inkCounts = contentInk;
+    }
+    
+    /**
+     * Printable size of a page in content pixels; the number of pages the
+     * selections take is shown in the title from then on, as they change.
+     */
+    public void setPageSize(double printableWidth, double printableHeight){
+        pageW = printableWidth;
+        pageH = printableHeight;
+        countPages();
+    }
+    
+    public boolean isRotationAllowed(){
+        return rotationAllowed.isSelected();
+    }
+    
+    /**
+     * @return the packing of the current selections on pages of the printable
+     * size (in content pixels), once the background packing is done; null
+     * before that or for another page size.
+     */
+    public ArrayList<ArrayList<int[]>> getPackedPages(double printableWidth, double printableHeight){
+        if((printableWidth == pageW) && (printableHeight == pageH)){
+            return packedPages;
+        }
+        return null;
+    }
+    
+    /**
+     * Packs the selections in the background, the title follows every better
+     * packing found and the best one is kept for printing; packings of former
+     * selections are ignored. All selectors share the one packing thread.
+     */
+    private void countPages(){
+        final ArrayList<double[]> sels;
+        final PagePacker pagePacker;
+        final int request, contentW, contentH;
+        
+        if((pageW > 0.0) && (pageH > 0.0)){
+            sels = getPrintSelections();
+            pagePacker = new PagePacker(pageW, pageH, rotationAllowed.isSelected(), PACKING_MILLIS);
+            request = ++packRequest;
+            packedPages = null;
+            contentW = (int) cW;
+            contentH = (int) cH;
+            packer.submit(()->{
+                final ArrayList<ArrayList<int[]>> packed;
+                
+                packed = pagePacker.pack(sels, contentW, contentH, (nPages)->{
+                    Platform.runLater(()->{
+                        if(request == packRequest){
+                            setTitle(TITLE + " (" + nPages + ((nPages == 1) ? " pagina)" : " pagina's)"));
+                        }
+                    });
+                });
+                Platform.runLater(()->{
+                    if(request == packRequest){
+                        packedPages = packed;
+                    }
+                });
+            });
+        }
+    }
+    
     public void showPages(ArrayList<Group> printPages){
         double w;
         Group pagesAside;
@@ -201,9 +300,16 @@ public class PrintSelector extends Stage {
                     if(!(bMarch.getDragged() ||
                             (bMarch.getContextMenuRequested()))){
                         bMarch.flipSides();
+                    } else if(bMarch.getDragged()){
+                        snapToBlankRow(bMarch);
                     }
                     updateMarchBPositions(bMarch);
+                    countPages();
                 });                
+                bMarch.boundsInParentProperty().addListener((bs, oBs, nBs)->{
+                    markCutInk(bMarch);
+                });
+                markCutInk(bMarch);
             } else {
                 break;
             }
@@ -243,6 +349,49 @@ public class PrintSelector extends Stage {
         }
     }
     
+    /**
+     * @return the ink on the content row within the horizontal extent of the
+     * selection.
+     */
+    private int inkOnRow(PrintSelection pS, int row){
+        double sX = contView.getFitWidth()/cW;
+        return inkCounts.rowInk(row, (int)(pS.getTranslateX()/sX),
+                (int)((pS.getTranslateX() + pS.getWidth())/sX));
+    }
+    
+    private int toContentRow(double y){
+        return (int) Math.floor((y/(contView.getFitHeight()/cH)) + 1.0e-6);
+    }
+    
+    private void markCutInk(PrintSelection pS){
+        if(inkCounts != null){
+            if((inkOnRow(pS, toContentRow(pS.getTranslateY())) > 0) ||
+                    (inkOnRow(pS, toContentRow(pS.getTranslateY() + pS.getHeight())) > 0)){
+                pS.setStroke(Color.RED);
+            } else {
+                pS.setStroke(Color.BLACK);
+            }
+        }
+    }
+    
+    private void snapToBlankRow(PrintSelection pS){
+        int row;
+        
+        if(inkCounts != null){
+            row = toContentRow(pS.getTranslateY());
+            if(inkOnRow(pS, row) > 0){
+                for(int dRow = 1; dRow <= SNAP_ROWS; dRow++){
+                    for(int yRow : new int[]{row - dRow, row + dRow}){
+                        if((yRow >= 0) && (yRow < cH) && (inkOnRow(pS, yRow) == 0)){
+                            pS.setTranslateY(yRow*(contView.getFitHeight()/cH));
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
     private void updateMarchSelectionSizes(double scaleX, double scaleY){
         if(marchSelections.size()>0){
             for(PrintSelection pS : marchSelections){
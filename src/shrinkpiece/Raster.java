@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Rectangle of pixels as premultiplied ARGB ints, row by row: the int view of
+ * the BGRA_PRE layout images keep internally. Pixels move in and out in bulk
+ * with getPixels/setPixels, kernels work on the array without any Color.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class Raster {
+
+    public static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+    public static final int TRANSPARENT = 0x00000000, WHITE = 0xffffffff;
+    private final int width, height;
+    private final int[] pixels;
+
+    public Raster(int w, int h){
+        width = Math.max(w, 0);
+        height = Math.max(h, 0);
+        pixels = new int[width*height];
+    }
+
+    /**
+     * @return the pixels [x, x + w) x [y, y + h) of the reader.
+     */
+    public static Raster read(PixelReader reader, int x, int y, int w, int h){
+        Raster r = new Raster(w, h);
+        if((r.width > 0) && (r.height > 0)){
+            reader.getPixels(x, y, r.width, r.height, FORMAT, r.pixels, 0, r.width);
+        }
+        return r;
+    }
+
+    public void write(PixelWriter writer, int x, int y){
+        if((width > 0) && (height > 0)){
+            writer.setPixels(x, y, width, height, FORMAT, pixels, 0, width);
+        }
+    }
+
+    /**
+     * Writes [fromX, toX) of a row to (dstX, dstY) of the writer.
+     */
+    public void writeRun(PixelWriter writer, int row, int fromX, int toX, int dstX, int dstY){
+        if(toX > fromX){
+            writer.setPixels(dstX, dstY, toX - fromX, 1, FORMAT, pixels,
+                    (row*width) + fromX, width);
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int[] getPixels(){
+        return pixels;
+    }
+
+    public int offset(int x, int y){
+        return (y*width) + x;
+    }
+
+    public int get(int x, int y){
+        return pixels[(y*width) + x];
+    }
+
+    public void set(int x, int y, int pixel){
+        pixels[(y*width) + x] = pixel;
+    }
+
+    public void fill(int pixel){
+        Arrays.fill(pixels, pixel);
+    }
+
+    public void fillRun(int row, int fromX, int toX, int pixel){
+        if(toX > fromX){
+            Arrays.fill(pixels, (row*width) + fromX, (row*width) + toX, pixel);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per row of a sheet the number of pixels darker than each possible paper
+ * threshold (a cumulative brightness histogram). Built once per image, after
+ * which the blank rows for any paper color follow in O(height). The counts
+ * are chars, which saturate at 65535 pixels: far more than any tolerance a
+ * row is classified with.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class RowBrightnessIndex {
+
+    private static final int LEVELS = 257, BAND_ROWS = 64;
+    private final int width, height;
+    private final char[] darkerThan;
+
+    private RowBrightnessIndex(int w, int h){
+        width = w;
+        height = h;
+        darkerThan = new char[h*LEVELS];
+    }
+
+    /**
+     * Builds the index from the brightness plane, bands of rows in parallel.
+     */
+    public static RowBrightnessIndex build(LuminancePlane plane){
+        RowBrightnessIndex index;
+
+        index = new RowBrightnessIndex(plane.getWidth(), plane.getHeight());
+        ForkJoinPool.commonPool().invoke(new IndexBand(plane, index.darkerThan,
+                0, plane.getHeight()));
+        return index;
+    }
+
+    /**
+     * Counts the rows [fromRow, toRow) again, after the sheet changed there.
+     */
+    public void updateRows(LuminancePlane plane, int fromRow, int toRow){
+        fromRow = Math.max(fromRow, 0);
+        toRow = Math.min(toRow, height);
+        if(fromRow < toRow){
+            new IndexBand(plane, darkerThan, fromRow, toRow).indexBand();
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return the number of pixels in the row darker than the threshold
+     * (0-256), at most 65535.
+     */
+    public int darkCount(int row, int threshold){
+        return darkerThan[(row*LEVELS) + threshold];
+    }
+
+    /**
+     * @return per row whether it holds more than darkTolerance non-paper pixels.
+     */
+    public boolean[] classify(int threshold, int darkTolerance){
+        boolean[] darkRows = new boolean[height];
+        for(int y = 0; y < height; y++){
+            darkRows[y] = darkerThan[(y*LEVELS) + threshold] > darkTolerance;
+        }
+        return darkRows;
+    }
+
+    /**
+     * Sequential merge of the row classification into clear area bounds
+     * {minX, minY, maxX, maxY}: every run of blank rows spanning more than a
+     * single row, from its first to its last blank row.
+     */
+    public static ArrayList<int[]> toClearAreaBounds(boolean[] darkRows, int width){
+        ArrayList<int[]> bounds;
+        int y, runStart;
+
+        bounds = new ArrayList<int[]>();
+        y = 0;
+        while(y < darkRows.length){
+            if(darkRows[y]){
+                y++;
+            } else {
+                runStart = y;
+                while((y < darkRows.length) && !darkRows[y]){
+                    y++;
+                }
+                if(((y - 1) - runStart) > 0){
+                    bounds.add(new int[]{0, runStart, width, y - 1});
+                }
+            }
+        }
+        return bounds;
+    }
+
+    private static class IndexBand extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final LuminancePlane plane;
+        private final char[] darkerThan;
+        private final int fromRow, toRow;
+
+        IndexBand(LuminancePlane lumPlane, char[] index, int from, int to){
+            plane = lumPlane;
+            darkerThan = index;
+            fromRow = from;
+            toRow = to;
+        }
+
+        @Override
+        protected void compute(){
+            if((toRow - fromRow) <= BAND_ROWS){
+                indexBand();
+            } else {
+                int mid = fromRow + ((toRow - fromRow)/2);
+                invokeAll(new IndexBand(plane, darkerThan, fromRow, mid),
+                        new IndexBand(plane, darkerThan, mid, toRow));
+            }
+        }
+
+        private void indexBand(){
+            int w, rowStart, histStart, sum;
+            int[] histogram;
+            byte[] lum;
+
+            w = plane.getWidth();
+            lum = plane.getPlane();
+            histogram = new int[LEVELS];
+            for(int y = fromRow; y < toRow; y++){
+                rowStart = y*w;
+                histStart = y*LEVELS;
+                //Histogram of the row, shifted by one to count the darker pixels:
+                Arrays.fill(histogram, 0);
+                for(int x = 0; x < w; x++){
+                    histogram[(lum[rowStart + x] & 0xff) + 1]++;
+                }
+                sum = 0;
+                for(int t = 0; t < LEVELS; t++){
+                    sum += histogram[t];
+                    darkerThan[histStart + t] = (char) Math.min(sum, Character.MAX_VALUE);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+/**
+ * The sheet being refactored, kept between runs as a checkpoint of the undo
+ * history and the sheet edits logged after it (see EditLog). A run restores
+ * the checkpoint and replays the edits, which may be undone one by one as
+ * before. The file is given by the system property shrinkpiece.session, by
+ * default .shrinkpiece-session in the home directory.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class SessionFile<A extends Enum<A>> {
+
+    public static final String PATH_PROPERTY = "shrinkpiece.session";
+    private static final int MAGIC = 0x53506b53, VERSION = 1;
+    private static final byte NO_SOURCE = 0, IMAGE_SOURCE = 1, STRING_SOURCE = 2;
+    private final File file;
+    private final Class<A> actionType;
+    private Raster sheet;
+    private List<EditLog.Edit<A>> edits;
+
+    public SessionFile(Class<A> actions){
+        this(new File(System.getProperty(PATH_PROPERTY,
+                new File(System.getProperty("user.home"), ".shrinkpiece-session").getPath())), actions);
+    }
+
+    public SessionFile(File sessionFile, Class<A> actions){
+        file = sessionFile;
+        actionType = actions;
+        sheet = null;
+        edits = new ArrayList<EditLog.Edit<A>>();
+    }
+
+    /**
+     * Writes the sheet and the edits to replay on it over the former session.
+     */
+    public void save(Raster sheetPixels, List<EditLog.Edit<A>> sheetEdits) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeRaster(out, sheetPixels);
+            out.writeInt(sheetEdits.size());
+            for(EditLog.Edit<A> edit : sheetEdits){
+                out.writeUTF(edit.getAction().name());
+                if(edit.getSource() instanceof Image){
+                    Image image = (Image) edit.getSource();
+                    out.writeByte(IMAGE_SOURCE);
+                    writeRaster(out, Raster.read(image.getPixelReader(), 0, 0,
+                            (int) image.getWidth(), (int) image.getHeight()));
+                } else if(edit.getSource() instanceof String){
+                    out.writeByte(STRING_SOURCE);
+                    out.writeUTF((String) edit.getSource());
+                } else {
+                    out.writeByte(NO_SOURCE);
+                }
+                out.writeBoolean(edit.getText() != null);
+                if(edit.getText() != null){
+                    out.writeUTF(edit.getText());
+                }
+                out.writeInt(edit.getParams().length);
+                for(double param : edit.getParams()){
+                    out.writeDouble(param);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the session saved before, if any, for getSheet and getEdits.
+     *
+     * @return whether there was one.
+     */
+    public boolean read() throws IOException {
+        int nEdits, nParams;
+        A action;
+        Object source;
+        String text;
+        double[] params;
+        byte sourceType;
+
+        if(!file.isFile()){
+            return false;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))){
+            if((in.readInt() != MAGIC) || (in.readInt() != VERSION)){
+                throw new IOException("Not a session of this version: " + file);
+            }
+            sheet = readRaster(in);
+            edits = new ArrayList<EditLog.Edit<A>>();
+            nEdits = in.readInt();
+            for(int eInd = 0; eInd < nEdits; eInd++){
+                try {
+                    action = Enum.valueOf(actionType, in.readUTF());
+                } catch (IllegalArgumentException ex){
+                    throw new IOException("Unknown edit in session: " + ex.getMessage());
+                }
+                sourceType = in.readByte();
+                if(sourceType == IMAGE_SOURCE){
+                    source = toImage(readRaster(in));
+                } else if(sourceType == STRING_SOURCE){
+                    source = in.readUTF();
+                } else {
+                    source = null;
+                }
+                text = in.readBoolean() ? in.readUTF() : null;
+                nParams = in.readInt();
+                params = new double[nParams];
+                for(int pInd = 0; pInd < nParams; pInd++){
+                    params[pInd] = in.readDouble();
+                }
+                edits.add(new EditLog.Edit<A>(action, source, text, params));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the sheet the edits were performed on, or null.
+     */
+    public Raster getSheet(){
+        return sheet;
+    }
+
+    public List<EditLog.Edit<A>> getEdits(){
+        return edits;
+    }
+
+    public void delete(){
+        if(file.exists() && !file.delete()){
+            System.out.println("Session file could not be deleted: " + file);
+        }
+    }
+
+    public static WritableImage toImage(Raster pixels){
+        WritableImage image = new WritableImage(Math.max(pixels.getWidth(), 1),
+                Math.max(pixels.getHeight(), 1));
+        pixels.write(image.getPixelWriter(), 0, 0);
+        return image;
+    }
+
+    private static void writeRaster(DataOutputStream out, Raster pixels) throws IOException {
+        byte[] packed = PixelPacker.pack(pixels.getPixels(), 0, pixels.getPixels().length,
+                Math.max(pixels.getWidth(), 1));
+
+        out.writeInt(pixels.getWidth());
+        out.writeInt(pixels.getHeight());
+        out.writeInt(packed.length);
+        out.write(packed);
+    }
+
+    private static Raster readRaster(DataInputStream in) throws IOException {
+        Raster pixels;
+        byte[] packed;
+
+        pixels = new Raster(in.readInt(), in.readInt());
+        packed = new byte[in.readInt()];
+        in.readFully(packed);
+        try {
+            PixelPacker.unpack(packed, pixels.getPixels(), 0, pixels.getPixels().length,
+                    Math.max(pixels.getWidth(), 1));
+        } catch (IllegalStateException ex){
+            throw new IOException(ex.getMessage());
+        }
+        return pixels;
+    }
+
+}
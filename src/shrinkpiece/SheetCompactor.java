@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import javafx.scene.image.PixelReader;
+
+/**
+ * Stacks strips of a sheet on top of each other in one pass over the pixel
+ * buffers. Next to the stacked sheet itself (paper kept, as the stored
+ * graphics) it delivers the version with transparent paper for the canvas and
+ * the brightness plane of the result, so no snapshot has to be read back.
+ * The sheet is opaque, so its premultiplied pixels hold the plain components.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class SheetCompactor {
+
+    private final int width, height;
+    private final Raster opaque, transparent;
+    private final byte[] brightness;
+
+    /**
+     * @param strips {srcX, srcY, width, height} per strip, stacked from the
+     * top in list order.
+     */
+    public SheetCompactor(PixelReader from, int sheetWidth, ArrayList<int[]> strips,
+            int paperThreshold){
+        int h, dstRow, w, offset, argb, r, g, b, max;
+        int[] opaquePixels, transparentPixels;
+
+        h = 0;
+        for(int[] strip : strips){
+            h += strip[3];
+        }
+        width = sheetWidth;
+        height = h;
+        opaque = new Raster(width, height);
+        transparent = new Raster(width, height);
+        opaquePixels = opaque.getPixels();
+        transparentPixels = transparent.getPixels();
+        brightness = new byte[width*height];
+        //Parts of rows not covered by a strip remain paper:
+        opaque.fill(Raster.WHITE);
+        Arrays.fill(brightness, (byte) 0xff);
+
+        dstRow = 0;
+        for(int[] strip : strips){
+            w = Math.min(strip[2], width);
+            if((w > 0) && (strip[3] > 0)){
+                //One bulk read per strip, straight into the stacked sheet:
+                from.getPixels(strip[0], strip[1], w, strip[3],
+                        Raster.FORMAT, opaquePixels, dstRow*width, width);
+                for(int y = dstRow; y < (dstRow + strip[3]); y++){
+                    offset = y*width;
+                    for(int x = offset; x < (offset + w); x++){
+                        argb = opaquePixels[x];
+                        r = (argb >> 16) & 0xff;
+                        g = (argb >> 8) & 0xff;
+                        b = argb & 0xff;
+                        max = (r > g) ? r : g;
+                        if(b > max){
+                            max = b;
+                        }
+                        brightness[x] = (byte) max;
+                        if(max < paperThreshold){
+                            transparentPixels[x] = argb;
+                        }
+                    }
+                }
+            }
+            dstRow += strip[3];
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return the stacked sheet, paper kept.
+     */
+    public Raster getOpaque(){
+        return opaque;
+    }
+
+    /**
+     * @return the stacked sheet with the paper transparent.
+     */
+    public Raster getTransparent(){
+        return transparent;
+    }
+
+    public LuminancePlane getLuminancePlane(){
+        return new LuminancePlane(brightness, width, height);
+    }
+
+}
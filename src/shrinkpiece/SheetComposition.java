@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import javafx.scene.paint.Color;
+
+/**
+ * The sheet, made of parts stacked from the top and kept as references to
+ * their images. Prepending a stored piece or taking it off again only
+ * changes the list of parts. The pixels are read through the parts (as a
+ * PixelReader) and put together only when the sheet is drawn or one image of
+ * it is asked for. Parts narrower than the sheet are padded with paper.
+ * <p>
+ * Parts the sheet did not make itself, as stored pieces, are not written to:
+ * the first write to one of them copies it (widened to the sheet where the
+ * write reaches beyond it). A shared sheet (see share) holds the same parts,
+ * which are copied alike before the sheet writes to them again.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class SheetComposition implements PixelReader {
+
+    private final ArrayList<Image> parts;
+    private final HashSet<Image> own;
+
+    public SheetComposition(){
+        parts = new ArrayList<Image>();
+        own = new HashSet<Image>();
+    }
+
+    /**
+     * The sheet becomes the image alone, which it may write to.
+     */
+    public void set(WritableImage whole){
+        parts.clear();
+        own.clear();
+        parts.add(whole);
+        own.add(whole);
+    }
+
+    /**
+     * Puts an image that is not written to any more on top of the sheet.
+     */
+    public void prepend(Image part){
+        parts.add(0, part);
+    }
+
+    /**
+     * @return the part taken off the top of the sheet.
+     */
+    public Image removeFirst(){
+        Image first = parts.remove(0);
+        own.remove(first);
+        return first;
+    }
+
+    public Image getPart(int ind){
+        return parts.get(ind);
+    }
+
+    public int getPartCount(){
+        return parts.size();
+    }
+
+    /**
+     * @return a sheet of the same parts, for reading while this one is
+     * edited on.
+     */
+    public SheetComposition share(){
+        SheetComposition shared = new SheetComposition();
+        shared.parts.addAll(parts);
+        own.clear();
+        return shared;
+    }
+
+    public int getWidth(){
+        return getWidth(0);
+    }
+
+    /**
+     * @return the width of the parts from fromPart on.
+     */
+    public int getWidth(int fromPart){
+        int w = 0;
+        for(int pInd = fromPart; pInd < parts.size(); pInd++){
+            w = Math.max(w, (int) parts.get(pInd).getWidth());
+        }
+        return w;
+    }
+
+    public int getHeight(){
+        int h = 0;
+        for(Image part : parts){
+            h += (int) part.getHeight();
+        }
+        return h;
+    }
+
+    public void draw(GraphicsContext gc){
+        int y = 0;
+        for(Image part : parts){
+            gc.drawImage(part, 0.0, y);
+            y += (int) part.getHeight();
+        }
+    }
+
+    /**
+     * @return the sheet as one image that is not written to any more: the
+     * part itself for a sheet of one part, else a composed copy.
+     */
+    public Image toImage(){
+        if(parts.size() == 1){
+            own.clear();
+            return parts.get(0);
+        }
+        return compose();
+    }
+
+    /**
+     * @return the sheet as one image, copied part by part in bulk.
+     */
+    public WritableImage compose(){
+        WritableImage sheet;
+        PixelWriter writer;
+        int w, h, y, pw, ph;
+        int[] paper;
+
+        w = getWidth();
+        h = getHeight();
+        sheet = new WritableImage(Math.max(w, 1), Math.max(h, 1));
+        writer = sheet.getPixelWriter();
+        paper = null;
+        y = 0;
+        for(Image part : parts){
+            pw = (int) part.getWidth();
+            ph = (int) part.getHeight();
+            if((pw > 0) && (ph > 0)){
+                writer.setPixels(0, y, pw, ph, part.getPixelReader(), 0, 0);
+            }
+            if((pw < w) && (ph > 0)){
+                if(paper == null){
+                    paper = new int[w];
+                    Arrays.fill(paper, Raster.WHITE);
+                }
+                writer.setPixels(pw, y, w - pw, ph, Raster.FORMAT, paper, 0, 0);
+            }
+            y += ph;
+        }
+        return sheet;
+    }
+
+    /**
+     * Brightness of the sheet after a prepend: the plane of the sheet below
+     * the first part is copied in row by row, the brightness of the first
+     * part is pulled from its pixels.
+     */
+    public LuminancePlane prependLuminance(LuminancePlane formerPlane){
+        LuminancePlane firstPlane;
+        byte[] plane;
+        Image first;
+        int w, pw, ph, fw;
+
+        w = getWidth();
+        plane = new byte[w*getHeight()];
+        Arrays.fill(plane, (byte) 0xff);
+        first = parts.get(0);
+        pw = (int) first.getWidth();
+        ph = (int) first.getHeight();
+        firstPlane = new LuminancePlane(first.getPixelReader(), pw, ph);
+        for(int row = 0; row < ph; row++){
+            System.arraycopy(firstPlane.getPlane(), row*pw, plane, row*w, pw);
+        }
+        fw = formerPlane.getWidth();
+        for(int row = 0; row < formerPlane.getHeight(); row++){
+            System.arraycopy(formerPlane.getPlane(), row*fw, plane, (ph + row)*w, fw);
+        }
+        return new LuminancePlane(plane, w, ph + formerPlane.getHeight());
+    }
+
+    @Override
+    public PixelFormat<IntBuffer> getPixelFormat(){
+        return Raster.FORMAT;
+    }
+
+    @Override
+    public int getArgb(int x, int y){
+        int top = 0;
+        for(Image part : parts){
+            if(y < (top + (int) part.getHeight())){
+                return (x < (int) part.getWidth()) ? part.getPixelReader().getArgb(x, y - top) :
+                        Raster.WHITE;
+            }
+            top += (int) part.getHeight();
+        }
+        return Raster.WHITE;
+    }
+
+    @Override
+    public Color getColor(int x, int y){
+        int argb = getArgb(x, y);
+        return Color.rgb((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff,
+                (argb >>> 24)/255.0);
+    }
+
+    /**
+     * Reads through the parts; paper where no part reaches.
+     */
+    @Override
+    public void getPixels(int x, int y, int w, int h, WritablePixelFormat<IntBuffer> pixelformat,
+            int[] buffer, int offset, int scanlineStride){
+        int top, from, to, inW;
+
+        top = 0;
+        for(Image part : parts){
+            from = Math.max(y, top);
+            to = Math.min(y + h, top + (int) part.getHeight());
+            if(from < to){
+                inW = Math.max(Math.min(x + w, (int) part.getWidth()) - x, 0);
+                if(inW > 0){
+                    part.getPixelReader().getPixels(x, from - top, inW, to - from, pixelformat,
+                            buffer, offset + ((from - y)*scanlineStride), scanlineStride);
+                }
+                for(int row = from; (inW < w) && (row < to); row++){
+                    Arrays.fill(buffer, offset + ((row - y)*scanlineStride) + inW,
+                            offset + ((row - y)*scanlineStride) + w, Raster.WHITE);
+                }
+            }
+            top += (int) part.getHeight();
+        }
+        for(int row = Math.max(y, top); row < (y + h); row++){
+            Arrays.fill(buffer, offset + ((row - y)*scanlineStride),
+                    offset + ((row - y)*scanlineStride) + w, Raster.WHITE);
+        }
+    }
+
+    @Override
+    public void getPixels(int x, int y, int w, int h, WritablePixelFormat<ByteBuffer> pixelformat,
+            byte[] buffer, int offset, int scanlineStride){
+        int top, from, to, inW;
+
+        //Paper is 0xff in every byte of the (premultiplied) BGRA formats:
+        top = 0;
+        for(Image part : parts){
+            from = Math.max(y, top);
+            to = Math.min(y + h, top + (int) part.getHeight());
+            if(from < to){
+                inW = Math.max(Math.min(x + w, (int) part.getWidth()) - x, 0);
+                if(inW > 0){
+                    part.getPixelReader().getPixels(x, from - top, inW, to - from, pixelformat,
+                            buffer, offset + ((from - y)*scanlineStride), scanlineStride);
+                }
+                for(int row = from; (inW < w) && (row < to); row++){
+                    Arrays.fill(buffer, offset + ((row - y)*scanlineStride) + (4*inW),
+                            offset + ((row - y)*scanlineStride) + (4*w), (byte) 0xff);
+                }
+            }
+            top += (int) part.getHeight();
+        }
+        for(int row = Math.max(y, top); row < (y + h); row++){
+            Arrays.fill(buffer, offset + ((row - y)*scanlineStride),
+                    offset + ((row - y)*scanlineStride) + (4*w), (byte) 0xff);
+        }
+    }
+
+    /**
+     * Reads the pixels in the native format first and converts them
+     * through an image of the rectangle.
+     */
+    @Override
+    public <T extends Buffer> void getPixels(int x, int y, int w, int h,
+            WritablePixelFormat<T> pixelformat, T buffer, int scanlineStride){
+        WritableImage region;
+        int[] pixels;
+
+        if((w > 0) && (h > 0)){
+            pixels = new int[w*h];
+            getPixels(x, y, w, h, Raster.FORMAT, pixels, 0, w);
+            region = new WritableImage(w, h);
+            region.getPixelWriter().setPixels(0, 0, w, h, Raster.FORMAT, pixels, 0, w);
+            region.getPixelReader().getPixels(0, 0, w, h, pixelformat, buffer, scanlineStride);
+        }
+    }
+
+    /**
+     * @return a writer that writes through to the parts, copying the parts
+     * the sheet may not write to first.
+     */
+    public PixelWriter getPixelWriter(){
+        return new PartWriter();
+    }
+
+    /**
+     * @return the writer of the part at pInd, reaching at least minWidth
+     * (within the sheet).
+     */
+    private PixelWriter getPartWriter(int pInd, int minWidth){
+        WritableImage copy;
+        Image part;
+        int pw, ph, w;
+        int[] paper;
+
+        part = parts.get(pInd);
+        pw = (int) part.getWidth();
+        ph = (int) part.getHeight();
+        w = Math.max(pw, Math.min(minWidth, getWidth()));
+        if(!own.contains(part) || (w > pw)){
+            copy = new WritableImage(Math.max(w, 1), Math.max(ph, 1));
+            if((pw > 0) && (ph > 0)){
+                copy.getPixelWriter().setPixels(0, 0, pw, ph, part.getPixelReader(), 0, 0);
+            }
+            if((w > pw) && (ph > 0)){
+                paper = new int[w - pw];
+                Arrays.fill(paper, Raster.WHITE);
+                copy.getPixelWriter().setPixels(pw, 0, w - pw, ph, Raster.FORMAT, paper, 0, 0);
+            }
+            parts.set(pInd, copy);
+            own.remove(part);
+            own.add(copy);
+            part = copy;
+        }
+        return ((WritableImage) part).getPixelWriter();
+    }
+
+    /**
+     * Write of rows [fromRow, fromRow + rows) of a rectangle to the part
+     * holding them, from row partY of the part on.
+     */
+    private interface Band {
+        void write(PixelWriter partWriter, int partY, int fromRow, int rows);
+    }
+
+    /**
+     * Writes to the parts row band by row band; what lies outside the sheet
+     * is dropped.
+     */
+    private class PartWriter implements PixelWriter {
+
+        private void writeBands(int x, int y, int w, int h, Band band){
+            int top, from, to;
+
+            w = Math.min(w, getWidth() - x);
+            top = 0;
+            for(int pInd = 0; (w > 0) && (pInd < parts.size()) && (top < (y + h)); pInd++){
+                from = Math.max(y, top);
+                to = Math.min(y + h, top + (int) parts.get(pInd).getHeight());
+                if(from < to){
+                    band.write(getPartWriter(pInd, x + w), from - top, from - y, to - from);
+                }
+                top += (int) parts.get(pInd).getHeight();
+            }
+        }
+
+        @Override
+        public PixelFormat<IntBuffer> getPixelFormat(){
+            return Raster.FORMAT;
+        }
+
+        @Override
+        public void setArgb(int x, int y, int argb){
+            writeBands(x, y, 1, 1, (writer, partY, fromRow, rows)->
+                    writer.setArgb(x, partY, argb));
+        }
+
+        @Override
+        public void setColor(int x, int y, Color c){
+            writeBands(x, y, 1, 1, (writer, partY, fromRow, rows)->
+                    writer.setColor(x, partY, c));
+        }
+
+        @Override
+        public <T extends Buffer> void setPixels(int x, int y, int w, int h,
+                PixelFormat<T> pixelformat, T buffer, int scanlineStride){
+            final int start = buffer.position();
+
+            writeBands(x, y, w, h, (writer, partY, fromRow, rows)->{
+                buffer.position(start + (fromRow*scanlineStride));
+                writer.setPixels(x, partY, Math.min(w, getWidth() - x), rows, pixelformat,
+                        buffer, scanlineStride);
+            });
+            buffer.position(start);
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, PixelFormat<ByteBuffer> pixelformat,
+                byte[] buffer, int offset, int scanlineStride){
+            writeBands(x, y, w, h, (writer, partY, fromRow, rows)->
+                    writer.setPixels(x, partY, Math.min(w, getWidth() - x), rows, pixelformat,
+                            buffer, offset + (fromRow*scanlineStride), scanlineStride));
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, PixelFormat<IntBuffer> pixelformat,
+                int[] buffer, int offset, int scanlineStride){
+            writeBands(x, y, w, h, (writer, partY, fromRow, rows)->
+                    writer.setPixels(x, partY, Math.min(w, getWidth() - x), rows, pixelformat,
+                            buffer, offset + (fromRow*scanlineStride), scanlineStride));
+        }
+
+        @Override
+        public void setPixels(int dstx, int dsty, int w, int h, PixelReader reader,
+                int srcx, int srcy){
+            writeBands(dstx, dsty, w, h, (writer, partY, fromRow, rows)->
+                    writer.setPixels(dstx, partY, Math.min(w, getWidth() - dstx), rows, reader,
+                            srcx, srcy + fromRow));
+        }
+    }
+
+}
@@ -22,10 +22,15 @@ package shrinkpiece;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.ListChangeListener;
+import javafx.concurrent.Task;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
@@ -33,12 +38,14 @@ import javafx.print.PageLayout;
 import javafx.print.PageOrientation;
 import javafx.print.PageRange;
 import javafx.print.Paper;
+import javafx.print.PrintResolution;
 import javafx.print.PrintSides;
 import javafx.print.Printer;
 import javafx.print.PrinterJob;
 import javafx.scene.Group;
 import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
@@ -78,8 +85,10 @@ import javafx.scene.shape.StrokeType;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.scene.text.Text;
+import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import shrinkpiece.GuideRectangle.GuideOrientation;
 
 /**
@@ -102,10 +111,16 @@ public class ShrinkPiece extends Application {
             mWidth = 19.0, mHeight = 14.2, arrWidth = 2.0, dotRad = 3.0,
             DOTS_PER_POINT = 72.0/Screen.getPrimary().getDpi(),
             WIDTH_COP = 525.0, HEIGHT_COP = 600.0;
+    private final int CLEAR_ROW_TOLERANCE = 4, CHECKPOINT_EDITS = 8;
+    private final List<Actions> SHEET_EDITS = Arrays.asList(Actions.IMAGE_IMPORT, Actions.PIECE_CROP,
+            Actions.SHRINK, Actions.DELETE_SELECTED_AREA, Actions.SCALE_REF_AREA, Actions.SETTLE_REF_AREA,
+            Actions.ENTER_TEXT, Actions.REP_SIGN_MERGE, Actions.SEGNO_MERGE, Actions.SHRUNK_PIECE_PREPEND);
+    private final long PACKING_MILLIS = 200;
+    private final double PRINT_DPI_LIMIT = 300.0;
     private double xOffDSArr, yOffDSArr, sXMPRI, sYMPRI, sXPapRect, sYPapRect, addWPapRectGuide,
             addHPapRectGuide, sXBrush, sYBrush, sXTGon, sYTGon, sXMGon, sYMGon, sXTCI, sYTCI,
             sXLA, sYLA, sXMA, sYMA, xOffTBShadow, yOffTBShadow, xInPPane, yInPPane;
-    private int indAreaToRemove, indPrepShrunkPiece;
+    private int indAreaToRemove, indPrepShrunkPiece, widthBelowPrepend;
     private GraphicsContext sPCont;
     private Canvas shrunkPiece;
     private ProgressIndicator progIndicator;
@@ -114,7 +129,8 @@ public class ShrinkPiece extends Application {
     private Scene shrinkScene;
     private Group shrinkComponents, importArr, shPieceContent, maskGr, mask, 
                 sPieceSPaneContentWShade, clearAreas, resizeArrow, rotateArrow,
-                shrunkPieces, textEntry, reps, segnoSeg;
+                textEntry, reps, segnoSeg;
+    private PieceStrip shrunkPieces;
     private GroupTranslatable repsTranslL, repsTranslR;
     private static Group layGuidesInit;
     private GroupButton segnoButton, repsButton;    
@@ -130,13 +146,15 @@ public class ShrinkPiece extends Application {
     private ColorThreshold papColBox;
     private ShrinkPhase ph, formerPh;
     private boolean byKeyPressHor, byKeyPressVer, shiftPiecePane, ctrPiecePane,
-            transfSelDragged, sPiecePaneIntWasVisible, ornamentation;
+            transfSelDragged, transfSelLifted, sPiecePaneIntWasVisible, ornamentation;
     private Button hideSplashButton, clearButton, menuButton;
     private ContextMenu shrinkMenu;
     private MenuItem deleteSel, clearAccordingToArea;
     private Node selItem;
     private Canvas brush;
-    private WritableImage preModificationImage, sPContImage, cutOutImage;
+    private WritableImage cutOutImage;
+    private SheetComposition sPContSheet;
+    private Image prependedPart;
     private Image piece;
     private ImageView cutImageView, lRepView, rRepView;
     private Line arrShunt, leftPoint, rightPoint;
@@ -151,9 +169,28 @@ public class ShrinkPiece extends Application {
     private final Font tooltipFont = Font.font("Cooper Black", 12.0);
     private Text schermafdrukHulp;
     private PrintSelector pPr;    
-    private ArrayList<Actions> actionsPerformed;
+    private EditLog<Actions> editLog;
+    private TileHistory sheetHistory;
     private ClearArea removedClearArea;
     private ShrunkPiece shrunkPiecePrepended;
+    private LuminancePlane lumPlane;
+    private InkMask inkMask;
+    private InkIntegral inkIntegral;
+    private RowBrightnessIndex rowIndex;
+    private int sheetRevision;
+    private PauseTransition clearAreaPreviewDelay;
+    private Task<ArrayList<int[]>> clearAreaPreview;
+    private final PageCache pageCache = new PageCache();
+    private final ExecutorService printSpooler = Executors.newSingleThreadExecutor((r)->{
+        Thread spoolerThread = new Thread(r, "print-spooling");
+        spoolerThread.setDaemon(true);
+        return spoolerThread;
+    });
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor((r)->{
+        Thread previewThread = new Thread(r, "clear-area-preview");
+        previewThread.setDaemon(true);
+        return previewThread;
+    });
     public final String GPL3_TEXT = "This program is free software: you can redistribute"
                 + " it and/or modify\n" +
                 " it under the terms of the GNU General Public License as published by\n" +
@@ -181,7 +218,7 @@ public class ShrinkPiece extends Application {
         shPieceContent = new Group();
         sPieceSPaneContentWShade = new Group();
         resizeArrow = new Group();
-        shrunkPieces = new Group(); 
+        shrunkPieces = new PieceStrip(); 
         textEntry = new Group();
         reps = new Group();
         repsButton = new GroupButton();
@@ -208,14 +245,24 @@ public class ShrinkPiece extends Application {
         removedClearArea = null;
         indAreaToRemove = -1;
         indPrepShrunkPiece = -1;
-        preModificationImage = null;
+        prependedPart = null;
+        sheetHistory = new TileHistory();
+        lumPlane = null;
+        inkMask = null;
+        inkIntegral = null;
+        rowIndex = null;
+        clearAreaPreview = null;
+        clearAreaPreviewDelay = new PauseTransition(Duration.millis(150.0));
+        clearAreaPreviewDelay.setOnFinished((pF)->{
+            startClearAreaPreview();
+        });
         tPreviewOffset = null;
         pPr = null;
         shiftPiecePane = false;
         ctrPiecePane = false;
         ornamentation = false;
         sPiecePaneIntWasVisible = false;
-        actionsPerformed = new ArrayList<Actions>();
+        editLog = new EditLog<Actions>();
         textEntered = "";
         repResizing = new TwoDimensionalAdjustment(); 
         
@@ -242,9 +289,8 @@ public class ShrinkPiece extends Application {
         
         updateTXShrunkPieces();
         shrunkPieces.setTranslateY(sPiecePane.getTranslateY());
-        shrunkPieces.getChildren().addListener((ListChangeListener.Change<? extends Node> c) -> {
-            orderStroredShrunk();
-        });
+        shrunkPieces.setViewportHeight(sPiecePane.getPrefHeight());
+        shrunkPieces.setOnPieceSelected(this::prependShrunkPiece);
         
         progIndicator.setTranslateX(AWIDTH*0.5);
         progIndicator.setTranslateY(AHEIGHT*0.5);
@@ -320,7 +366,7 @@ public class ShrinkPiece extends Application {
         shrinkPaneTooltipInteraction.setStroke(Color.TRANSPARENT);
         SPTooltip shrinkPaneTooltip = new SPTooltip("Compact music sheets into marching band format.\n" +
                                                     "Import clipboard-images (from 'PrtSc' key) with the arrow\n" +
-                                                    "or 'ENTER'. To proceed, press 'ENTER'."
+                                                    "or 'ENTER'. To proceed, press 'ENTER'.");
         shrinkPaneTooltip.setHideOnEscape(true);
         Tooltip.install(shrinkPaneTooltipInteraction, shrinkPaneTooltip);
         
@@ -344,11 +390,15 @@ public class ShrinkPiece extends Application {
         
         //When closing stageShrinker window, also close any open printing window:
         stageShrinker.setOnCloseRequest((wC) ->
-             { if(pPr != null && pPr.isShowing()) pPr.close(); }
+             { if(pPr != null && pPr.isShowing()) pPr.close();
+               saveSession();
+               sheetHistory.printStatistics();
+               sheetHistory.close(); }
         );
         stageShrinker.setMaximized(true);
         stageShrinker.setTitle("Shrink Piece");        
         stageShrinker.setScene(shrinkScene);
+        restoreSession();
     }
     
     private void initPasteMode(){
@@ -361,7 +411,7 @@ public class ShrinkPiece extends Application {
         addHPapRectGuide = 0.0;
         pReader = null; pWriter = null;
         selItem = null;
-        sPContImage = null;
+        sPContSheet = null;
         //mask.setVisible(false);
         boundsPaperRectangle = null;
         byKeyPressHor = false; 
@@ -554,8 +604,12 @@ public class ShrinkPiece extends Application {
             if(transfSelDragged){
                 transfSelDragged = false;
                 settlePieceExcerpt();
+                logEdit(Actions.SETTLE_REF_AREA, null, null, toParams(transformationAreaGon.getPoints(),
+                        transformationAreaGon.getTranslateX(), transformationAreaGon.getTranslateY()));
                 resetTransformationSelection();
-                actionsPerformed.add(Actions.SETTLE_REF_AREA);
+            } else {
+                //A press without a drag puts the cut out back:
+                settlePieceExcerpt();
             }
         });   
         
@@ -665,7 +719,7 @@ public class ShrinkPiece extends Application {
             switch(sName){
                 case "ClearArea":
                     deleteClearingArea((ClearArea) selItem);
-                    actionsPerformed.add(Actions.DELETE_SHRINK_AREA);
+                    logAction(Actions.DELETE_SHRINK_AREA);
                     break;
                 case "Polyline":
                 case "Polygon":
@@ -735,19 +789,24 @@ public class ShrinkPiece extends Application {
                     handleUndoRequest();
                     ornamentation = false;
                 }
+            } else if(kP.getCode().equals(KeyCode.Y) && kP.isControlDown()){
+                handleRedoRequest();
+                ornamentation = false;
+            } else if(kP.getCode().equals(KeyCode.S) && kP.isControlDown()){
+                exportMarchPdf();
             } else if (ornamentation){
                 switch(kP.getCode()){
                     case ESCAPE:
                     case BACK_SPACE:
                         if(textEntry.isVisible()){
                             hideTextEntry();
-                            actionsPerformed.add(Actions.ESCAPE_TEXT_ENTRY);
+                            logAction(Actions.ESCAPE_TEXT_ENTRY);
                         } else if(segnoSeg.isVisible()) {
                             segnoSeg.setVisible(false);
-                            actionsPerformed.add(Actions.ESCAPE_SEGNOSEG);
+                            logAction(Actions.ESCAPE_SEGNOSEG);
                         } else if(reps.isVisible()){
                             escapeRepPlacement();
-                            actionsPerformed.add(Actions.ESCAPE_REPS);
+                            logAction(Actions.ESCAPE_REPS);
                         } else {
                             if(repsTranslL.isVisible()){
                                 repsTranslL.setVisible(false);
@@ -755,7 +814,7 @@ public class ShrinkPiece extends Application {
                             if (repsTranslR.isVisible()){
                                 repsTranslR.setVisible(false);
                             }
-                            actionsPerformed.add(Actions.ESCAPE_REP_LR);
+                            logAction(Actions.ESCAPE_REP_LR);
                         }
                         ornamentation = false;
                         break;
@@ -764,12 +823,11 @@ public class ShrinkPiece extends Application {
                         if(repResizing.isVisible()){
                             repResizing.setVisible(false);
                             ungroupRepViews();
-                            actionsPerformed.add(Actions.UNGROUP_REP_VIEWS);
+                            logAction(Actions.UNGROUP_REP_VIEWS);
                         } else if(repsTranslL.isVisible() ||
                                 repsTranslR.isVisible()){
                             mergeSignWithScore();
                             ornamentation = false;
-                            actionsPerformed.add(Actions.REP_SIGN_MERGE);
                         }                        
                         break;                    
                 }
@@ -783,7 +841,6 @@ public class ShrinkPiece extends Application {
                                 }
                             case ENTER:
                                 importClipboardImage();
-                                actionsPerformed.add(Actions.IMAGE_IMPORT);
                                 break;
                         }        
                         break;
@@ -794,7 +851,6 @@ public class ShrinkPiece extends Application {
                             case ENTER:
                                 cropImage();
                                 setClearAreas();
-                                actionsPerformed.add(Actions.PIECE_CROP);
                                 break;
                             case LEFT:                            
                                 if (paperRectangle.isVisible()){
@@ -876,12 +932,11 @@ public class ShrinkPiece extends Application {
                         switch(kP.getCode()){
                             case ESCAPE:
                                 escapeClearing();
-                                actionsPerformed.add(Actions.ESCAPE_SHRINK);
+                                logAction(Actions.ESCAPE_SHRINK);
                                 break;
                             case ENTER:
                             case DELETE:
                                 clearButtonAction();
-                                actionsPerformed.add(Actions.SHRINK);
                                 break;
                         }
                         break;
@@ -890,25 +945,23 @@ public class ShrinkPiece extends Application {
                         switch(kP.getCode()){
                             case ESCAPE:
                                 resetTransformationSelection();
-                                actionsPerformed.add(Actions.ESCAPE_REFACTORING);
+                                logAction(Actions.ESCAPE_REFACTORING);
                                 break;
                             case ENTER:
                             case SPACE:
                                 if(transformationArea.isVisible()){                                
                                     completeSelectionTransformation();  
-                                    actionsPerformed.add(Actions.COMPLETE_REF_SEL);
+                                    logAction(Actions.COMPLETE_REF_SEL);
                                 } else if (transformationAreaGon.isVisible()) {
                                     deleteMarkedArea();
-                                    actionsPerformed.add(Actions.DELETE_SELECTED_AREA);
                                 } else {
                                     saveMarch();
-                                    actionsPerformed.add(Actions.SAVE_MARCH);
+                                    logAction(Actions.SAVE_MARCH);
                                 }
                                 break;
                             case DELETE:
                             case BACK_SPACE:
                                 deleteMarkedArea();
-                                actionsPerformed.add(Actions.DELETE_SELECTED_AREA);
                                 break;
                         }
                 }
@@ -950,7 +1003,7 @@ public class ShrinkPiece extends Application {
                 transformationArea.getPoints().add(xP);
                 transformationArea.getPoints().add(yP);
                 transformationArea.setVisible(true);   
-                actionsPerformed.add(Actions.ADD_REF_AREA);
+                logAction(Actions.ADD_REF_AREA);
             }
         });
         sPiecePaneInteraction.setOnMouseDragged((mD)->{
@@ -960,9 +1013,9 @@ public class ShrinkPiece extends Application {
                 xP = mD.getX();
                 yP = mD.getY();
                 
-                if(sPContImage != null){
-                    maxX = sPContImage.getWidth();
-                    maxY = sPContImage.getHeight();
+                if(sPContSheet != null){
+                    maxX = sPContSheet.getWidth();
+                    maxY = sPContSheet.getHeight();
                 } else if(shrunkPiece != null){
                     maxX = shrunkPiece.getWidth();
                     maxY = shrunkPiece.getHeight();
@@ -991,14 +1044,14 @@ public class ShrinkPiece extends Application {
                 }
                 transformationArea.getPoints().add(xP);
                 transformationArea.getPoints().add(yP);                      
-                actionsPerformed.add(Actions.ADD_REF_AREA);
+                logAction(Actions.ADD_REF_AREA);
             }
         });
         sPiecePaneInteraction.setOnMouseReleased((mR)->{
             if((!ornamentation) && (ph.equals(ShrinkPhase.REFACT))){
                 if(transformationArea.getPoints().size() > 0){
                     completeSelectionTransformation();                       
-                    actionsPerformed.add(Actions.COMPLETE_REF_SEL);
+                    logAction(Actions.COMPLETE_REF_SEL);
                 }
             }
         });
@@ -1026,30 +1079,36 @@ public class ShrinkPiece extends Application {
         if (shPCb.hasContent(DataFormat.IMAGE)){
             schermafdrukHulp.setVisible(false);
             piece = shPCb.getImage();
-            shrunkPiece.setWidth(piece.getWidth());
-            shrunkPiece.setHeight(piece.getHeight());
-            clearShrunkPieceContext();
-            sPCont.drawImage(piece, 0.0, 0.0);            
-            pWriter = sPCont.getPixelWriter();    
-            storeShrunkPieceGraphics();
+            drawImportedImage(piece);
+            logEdit(Actions.IMAGE_IMPORT, piece, null);
             marchPerifShade.setVisible(true);
             clearAreaSurroundingSheet();
         } else {
             schermafdrukHulp.setVisible(true);
+            logAction(Actions.IMAGE_IMPORT);
         }
         
         progIndicator.setVisible(false);
     }
     
+    private void drawImportedImage(Image image){
+        shrunkPiece.setWidth(image.getWidth());
+        shrunkPiece.setHeight(image.getHeight());
+        clearShrunkPieceContext();
+        sPCont.drawImage(image, 0.0, 0.0);            
+        pWriter = sPCont.getPixelWriter();    
+        storeShrunkPieceGraphics();
+    }
+    
     private void undoImportClipboardImage(){
-        if(shrunkPieces.getChildren().size() > 0){
-            shrunkPieces.getChildren().remove(shrunkPieces.getChildren().size() - 1);
+        if(shrunkPieces.size() > 0){
+            shrunkPieces.removeLast();
             ph = formerPh;            
             recoverShrunkPieceGraphics();
         } else {
             ph = ShrinkPhase.INIT_PASTE;            
             recoverShrunkPieceGraphics();
-            sPContImage = null;
+            sPContSheet = null;
         }
         sPiecePaneInteraction.setVisible(sPiecePaneIntWasVisible);
         paperRectangle.setVisible(false);
@@ -1294,6 +1353,72 @@ public class ShrinkPiece extends Application {
         });    
     }
     
+    /**
+     * Keeps a sheet being refactored for the next run, as its last
+     * checkpoint and the sheet edits since.
+     */
+    private void saveSession(){
+        SessionFile<Actions> session;
+        Raster sheet;
+        int mark;
+        ArrayList<EditLog.Edit<Actions>> sheetEdits;
+        
+        session = new SessionFile<Actions>(Actions.class);
+        if((ph.equals(ShrinkPhase.INIT_REFACT) || ph.equals(ShrinkPhase.REFACT)) &&
+                (sPContSheet != null)){
+            sheet = sheetHistory.readCheckpoint();
+            mark = sheetHistory.getLastMark();
+            if(sheet == null){
+                sheet = Raster.read(pReader, 0, 0, sPContSheet.getWidth(),
+                        sPContSheet.getHeight());
+                mark = editLog.size();
+            }
+            sheetEdits = new ArrayList<EditLog.Edit<Actions>>();
+            for(EditLog.Edit<Actions> edit : editLog.getEdits(mark, editLog.size())){
+                if(SHEET_EDITS.contains(edit.getAction())){
+                    sheetEdits.add(edit);
+                }
+            }
+            try {
+                session.save(sheet, sheetEdits);
+            } catch (IOException ex){
+                System.out.println("Session could not be saved: " + ex);
+            }
+        } else {
+            session.delete();
+        }
+    }
+    
+    /**
+     * Continues the refactoring of the former run: its checkpoint is drawn
+     * and its edits are replayed and logged, so they can be undone.
+     */
+    private void restoreSession(){
+        SessionFile<Actions> session;
+        
+        session = new SessionFile<Actions>(Actions.class);
+        try {
+            if(session.read() && (session.getSheet().getWidth() > 0) &&
+                    (session.getSheet().getHeight() > 0)){
+                schermafdrukHulp.setVisible(false);
+                drawImportedImage(SessionFile.toImage(session.getSheet()));
+                for(EditLog.Edit<Actions> edit : session.getEdits()){
+                    checkpointIfDue(editLog.size());
+                    editLog.add(edit);
+                    applyEdit(edit);
+                }
+                marchPerifShade.setVisible(true);
+                adjustWidthPiecePaneToMBounds();
+                formerPh = ph;
+                ph = ShrinkPhase.INIT_REFACT;
+                sPiecePaneInteraction.setVisible(true);
+            }
+        } catch (IOException | RuntimeException ex){
+            System.out.println("Session could not be restored: " + ex);
+            clearEditLog();
+        }
+    }
+    
     private void clearButtonAction(){
         clearButton.setDisable(true);
         clearClearingAreas(); 
@@ -1304,11 +1429,8 @@ public class ShrinkPiece extends Application {
     
     public void clearAreaSurroundingSheet(){
         if (pReader != null){
-            int nHorPixs, nVerPixs, minX, maxX;
-            ArrayList<int[]> clRectangles;
+            int nHorPixs, nVerPixs, hThr, vThr;
             int[] kBounds;
-            int nChainPapRow, nNonPaper, nNonPaperVert, nPaperThr, cSet, lastX, 
-                    lastY, hThr, vThr;
             
             formerPh = ph;
             ph = ShrinkPhase.INIT_CROP;
@@ -1318,101 +1440,17 @@ public class ShrinkPiece extends Application {
             paperRectangle.setVisible(true);
             papRectInt.setVisible(true);
             
-            nHorPixs = (int) sPContImage.getWidth();
-            nVerPixs = (int) sPContImage.getHeight();
-            clRectangles = new ArrayList<int[]>();
-            kBounds = new int[4];
-            cSet = 0;
-            minX = 0;
-            nChainPapRow = 0;
-            nNonPaper = 0;
-            nNonPaperVert = 0;
-            maxX = nHorPixs;
-            nPaperThr = 10;
+            nHorPixs = sPContSheet.getWidth();
+            nVerPixs = sPContSheet.getHeight();
             hThr = 20;
             vThr = 20;
-            lastX = 0;
-            lastY = 0;            
                         
             if ((nVerPixs > 50) && (nHorPixs > 50)){
-                for (int vIndCent = ((nVerPixs/2)-25); vIndCent < ((nVerPixs/2) + 25); vIndCent++){
-                    nChainPapRow = 0;
-                    nNonPaper = 0;
-                    for (int hIndCent = ((nHorPixs/2)-25); hIndCent < ((nHorPixs/2) + 25); hIndCent++){
-                        if(pReader.getColor(hIndCent, vIndCent).getBrightness() >=
-                                        papColBox.getColorThreshold().getBrightness()){
-                            lastX = hIndCent;
-                            lastY = vIndCent;
-                            
-                            cSet = 0;
-                            kBounds[0] = lastX;
-                            for (int hInd = lastX; hInd >= 0; hInd--){
-                                if(pReader.getColor(hInd, lastY).getBrightness() <
-                                                papColBox.getColorThreshold().getBrightness()){
-                                    if (cSet == 0){
-                                        kBounds[0] = hInd;
-                                    }
-                                    cSet++;                        
-                                } else {
-                                    if ((cSet > 0) && (cSet < hThr)){
-                                        cSet = 0;
-                                    }
-                                }
-                            }
-                            cSet = 0;
-                            kBounds[2] = lastX;
-                            for (int hInd = lastX; hInd < nHorPixs; hInd++){
-                                if(pReader.getColor(hInd, lastY).getBrightness() <
-                                                papColBox.getColorThreshold().getBrightness()){
-                                    if (cSet == 0){
-                                        kBounds[2] = hInd;
-                                    }
-                                    cSet++;                        
-                                } else {
-                                    if ((cSet > 0) && (cSet < hThr)){
-                                        cSet = 0;
-                                    }
-                                }
-                            }
-                            cSet = 0;
-                            kBounds[1] = lastY;
-                            for (int vInd = lastY; vInd >= 0; vInd--){
-                                if(pReader.getColor(lastX, vInd).getBrightness() <
-                                                papColBox.getColorThreshold().getBrightness()){
-                                    if (cSet == 0){
-                                        kBounds[1] = vInd;
-                                    }
-                                    cSet++;                        
-                                } else {
-                                    if ((cSet > 0) && (cSet < vThr)){
-                                        cSet = 0;
-                                    }
-                                }
-                            }
-                            cSet = 0;
-                            kBounds[3] = lastY;
-                            for (int vInd = lastY; vInd < nVerPixs; vInd++){
-                                if(pReader.getColor(lastX, vInd).getBrightness() <
-                                                papColBox.getColorThreshold().getBrightness()){
-                                    if (cSet == 0){
-                                        kBounds[3] = vInd;
-                                    }
-                                    cSet++;                        
-                                } else {
-                                    if ((cSet > 0) && (cSet < vThr)){
-                                        cSet = 0;
-                                    }
-                                }
-                            }
-                            if (((kBounds[2] - kBounds[0]) >= (0.9*boundsMBounds.getWidth())) &&
-                                    ((kBounds[3] - kBounds[1]) >= (0.9*boundsMBounds.getHeight()))){
-                                vIndCent = nVerPixs;
-                                break;
-                            }                            
-                        }
-                    }
-                }                     
+                //Page from the row and column paper profiles (one pass over the sheet):
+                kBounds = PageDetector.detect(getInkMask(), hThr, vThr,
+                        0.9*boundsMBounds.getWidth(), 0.9*boundsMBounds.getHeight());
             } else {
+                kBounds = new int[4];
                 kBounds[0] = 0; kBounds[1] = 0;
                 kBounds[2] = (nHorPixs -1); kBounds[3] = (nVerPixs - 1); 
             }
@@ -1437,23 +1475,33 @@ public class ShrinkPiece extends Application {
             }
             mouseExitPaperFrame();
             paperRectangle.setVisible(false);
-            clearShrunkPieceContext();            
             boundsPaperRectangle = paperRectangle.getBoundsInParent();
             scaleFact = boundsMBounds.getWidth()/boundsPaperRectangle.getWidth();
             newH = boundsPaperRectangle.getHeight()*scaleFact;
             newW = boundsMBounds.getWidth() - (marchBounds.getStrokeWidth()*2.0);
-            shrunkPiece.setWidth(newW);
-            shrunkPiece.setHeight(newH);
-            sPCont.drawImage(piece, boundsPaperRectangle.getMinX(), boundsPaperRectangle.getMinY(),
-                    boundsPaperRectangle.getWidth(), 
-                    boundsPaperRectangle.getHeight(), 0.0, 0.0,
-                    newW,newH);             
-            storeShrunkPieceGraphics();
+            drawCroppedPiece(piece, boundsPaperRectangle.getMinX(), boundsPaperRectangle.getMinY(),
+                    boundsPaperRectangle.getWidth(), boundsPaperRectangle.getHeight(), newW, newH);
+            logEdit(Actions.PIECE_CROP, piece, null, boundsPaperRectangle.getMinX(),
+                    boundsPaperRectangle.getMinY(), boundsPaperRectangle.getWidth(),
+                    boundsPaperRectangle.getHeight(), newW, newH);
             
             adjustWidthPiecePaneToMBounds();
         }        
     }
     
+    /**
+     * Draws [srcX, srcX + srcW) x [srcY, srcY + srcH) of the imported image
+     * as the whole sheet, of newW by newH.
+     */
+    private void drawCroppedPiece(Image source, double srcX, double srcY, double srcW, double srcH,
+            double newW, double newH){
+        clearShrunkPieceContext();            
+        shrunkPiece.setWidth(newW);
+        shrunkPiece.setHeight(newH);
+        sPCont.drawImage(source, srcX, srcY, srcW, srcH, 0.0, 0.0, newW, newH);             
+        storeShrunkPieceGraphics();
+    }
+    
     private void undoCropImage(){
         setInitWidthSPiecePane();
         recoverShrunkPieceGraphics();
@@ -1462,50 +1510,20 @@ public class ShrinkPiece extends Application {
     
     public void setClearAreas(){
         if (pReader != null) {
-            int xMin, xMax, yMin, yMax, cSet, nDarkH, nDarkV, yC, yCA;
-            int hThrA = 4;
-            int vThrA = 1;
-            int[] cABounds;
+            int xMax, papThr;
+            boolean[] darkRows;
                                    
             progIndicator.setVisible(true);
             
-            xMin = 0;
-            xMax = (int) sPContImage.getWidth();
-            yMin = 0;
-            yMax = (int) sPContImage.getHeight();
+            xMax = sPContSheet.getWidth();
             
+            cancelClearAreaPreview();
             clearAreas.getChildren().clear(); 
-            yCA = 0;
-            for(yC = yMin; yC <= yMax; yC++){
-                nDarkV = 0;
-                cABounds = new int[4];
-                cABounds[0] = xMin;
-                cABounds[1] = yC;
-                for(yCA = yC; yCA < yMax; yCA++){
-                    nDarkH = 0;
-                    for(int xCA = xMin; xCA < xMax; xCA++){  
-                        if (pReader.getColor(xCA, yCA).getBrightness() <
-                                papColBox.getColorThreshold().getBrightness()){
-                            nDarkH++;  
-                            if(nDarkH > hThrA){
-                                break;
-                            }
-                        }
-                    }
-                    if(nDarkH > hThrA){
-                        nDarkV++;
-                    }
-                    if ((nDarkH <= hThrA) && (nDarkV <= vThrA)){
-                        cABounds[2] = xMax;
-                        cABounds[3] = yCA;                        
-                    } else {                        
-                        break;
-                    }
-                }
-                if ((cABounds[3] - cABounds[1]) > 0){
-                    addClearingArea(cABounds);
-                }
-                yC = yCA;                                
+            //Rows are classified from the brightness index, the areas are merged sequentially:
+            papThr = LuminancePlane.toThreshold(papColBox.getColorThreshold());
+            darkRows = getRowIndex().classify(papThr, CLEAR_ROW_TOLERANCE);
+            for(int[] cABounds : RowBrightnessIndex.toClearAreaBounds(darkRows, xMax)){
+                addClearingArea(cABounds);
             }
             if (clearAreas.getChildren().size() > 0){
                 formerPh = ph;
@@ -1523,6 +1541,103 @@ public class ShrinkPiece extends Application {
         }
     }
     
+    private LuminancePlane getLuminancePlane(){
+        if(lumPlane == null){
+            lumPlane = new LuminancePlane(pReader, sPContSheet.getWidth(), sPContSheet.getHeight());
+            inkMask = null;
+            inkIntegral = null;
+        }
+        return lumPlane;
+    }
+    
+    private InkMask getInkMask(){
+        LuminancePlane plane;
+        int papThr;
+        
+        //One mask per sheet revision and paper color:
+        plane = getLuminancePlane();
+        papThr = LuminancePlane.toThreshold(papColBox.getColorThreshold());
+        if((inkMask == null) || (inkMask.getThreshold() != papThr)){
+            inkMask = new InkMask(plane, papThr);
+            inkIntegral = null;
+        }
+        return inkMask;
+    }
+    
+    private InkIntegral getInkIntegral(){
+        InkMask mask = getInkMask();
+        if(inkIntegral == null){
+            inkIntegral = new InkIntegral(mask);
+        }
+        return inkIntegral;
+    }
+    
+    private RowBrightnessIndex getRowIndex(){
+        //One index per stored sheet, reused for every paper color:
+        if(rowIndex == null){
+            rowIndex = RowBrightnessIndex.build(getLuminancePlane());
+        }
+        return rowIndex;
+    }
+    
+    private void startClearAreaPreview(){
+        if((sPContSheet != null) && ph.equals(ShrinkPhase.SHRINK)){
+            final SheetComposition previewOwner = sPContSheet;
+            final SheetComposition previewSheet = sPContSheet.share();
+            final int previewRevision = sheetRevision;
+            final RowBrightnessIndex cachedIndex = rowIndex;
+            final int papThr = LuminancePlane.toThreshold(papColBox.getColorThreshold());
+            final Task<ArrayList<int[]>> preview;
+            
+            cancelClearAreaPreview();
+            preview = new Task<ArrayList<int[]>>(){
+                private RowBrightnessIndex previewIndex;
+                
+                @Override
+                protected ArrayList<int[]> call(){
+                    int w = previewSheet.getWidth();
+                    
+                    previewIndex = cachedIndex;
+                    if(previewIndex == null){
+                        previewIndex = RowBrightnessIndex.build(new LuminancePlane(
+                                previewSheet, w, previewSheet.getHeight()));
+                    }
+                    if(isCancelled()){
+                        return null;
+                    }
+                    return RowBrightnessIndex.toClearAreaBounds(
+                            previewIndex.classify(papThr, CLEAR_ROW_TOLERANCE), w);
+                }
+                
+                @Override
+                protected void succeeded(){
+                    //Superseded runs and changed sheets are dropped:
+                    if((clearAreaPreview == this) && (sPContSheet == previewOwner) &&
+                            (sheetRevision == previewRevision) &&
+                            ph.equals(ShrinkPhase.SHRINK) && (getValue() != null)){
+                        rowIndex = previewIndex;
+                        clearAreas.getChildren().clear();
+                        for(int[] cABounds : getValue()){
+                            addClearingArea(cABounds);
+                        }
+                        clearButton.setDisable(clearAreas.getChildren().isEmpty());
+                        clearAreaPreview = null;
+                    }
+                }
+            };
+            clearAreaPreview = preview;
+            previewExecutor.execute(preview);
+        }
+    }
+    
+    private void cancelClearAreaPreview(){
+        clearAreaPreviewDelay.stop();
+        if(clearAreaPreview != null){
+            clearAreaPreview.cancel();
+            clearAreaPreview = null;
+        }
+    }
+    
     private void discardClearAreas(){
         if (clearAreas.getChildren().size() > 0){
             clearAreas.getChildren().clear();
@@ -1545,6 +1660,8 @@ public class ShrinkPiece extends Application {
             nAr.setOnMousePressed((mP)->{
                 if(mP.getButton().equals(MouseButton.SECONDARY)){
                     showShrinkContextMenu(nAr, mP.getScreenX(), mP.getScreenY());
+                } else {
+                    nAr.setInkCounts(getInkIntegral(), CLEAR_ROW_TOLERANCE);
                 }
             });
             clearAreas.getChildren().add(nAr);            
@@ -1580,55 +1697,78 @@ public class ShrinkPiece extends Application {
             if(nCAs > 0){
                 ClearArea currCA;
                 ClearArea nextCA;
-                double widthSum, heightSum, pY, pH, papBrightness;
+                ArrayList<int[]> strips;
+                int imW, imH, pY, pH, pX, pW, papThr;
+                double[] params;
                     
                 generateSPGraphicsRecovery();
 
-                widthSum = sPContImage.getWidth();
-                heightSum = 0.0;
-                pY = 0.0; pH = 0.0;
-                papBrightness = papColBox.getColorThreshold().getBrightness();
-                
-                clearShrunkPieceContext();
-                pY = ((ClearArea)clearAreas.getChildren().get(0)).getTranslateYRA();
-                if(pY > 0.0){
-                    pH = pY;  
-                    sPCont.drawImage(sPContImage,0.0,0.0,
-                            sPContImage.getWidth(),
-                            pH, 0.0, heightSum, sPContImage.getWidth(), pH);
-                    heightSum += pH;                    
+                imW = sPContSheet.getWidth();
+                imH = sPContSheet.getHeight();
+                strips = new ArrayList<int[]>();
+                //Row ranges surviving between the clear areas, {srcX, srcY, width, height}:
+                pY = (int) Math.round(((ClearArea)clearAreas.getChildren().get(0)).getTranslateYRA());
+                if(pY > 0){
+                    strips.add(new int[]{0, 0, imW, Math.min(pY, imH)});
                 }
                 for(int cAInd = 0; cAInd < nCAs; cAInd++){
                     currCA = ((ClearArea)clearAreas.getChildren().get(cAInd));
-                    pY = currCA.getTranslateYRA() + currCA.getHeightExclusive();
+                    pY = (int) Math.round(currCA.getTranslateYRA() + currCA.getHeightExclusive());
                     if ((cAInd+1) < nCAs){
                         nextCA = ((ClearArea)clearAreas.getChildren().get(cAInd + 1));  
-                        pH = nextCA.getTranslateYRA() - pY;
+                        pH = ((int) Math.round(nextCA.getTranslateYRA())) - pY;
                     } else {
                         nextCA = null;
-                        pH = ((int) sPContImage.getHeight()) - pY;
+                        pH = imH - pY;
+                    }
+                    pX = Math.max((int) Math.round(currCA.getTranslateXRA()), 0);
+                    pW = Math.min((int) Math.round(currCA.getWidthExclusive()), imW - pX);
+                    pY = Math.max(pY, 0);
+                    pH = Math.min(pH, imH - pY);
+                    if((pH > 0) && (pW > 0)){
+                        strips.add(new int[]{pX, pY, pW, pH});
                     }
-                    sPCont.drawImage(sPContImage, currCA.getTranslateXRA(),
-                            pY, currCA.getWidthExclusive(), pH,
-                            0.0, heightSum, currCA.getWidthExclusive(), pH);
-                    heightSum += pH;
                 }
+                papThr = LuminancePlane.toThreshold(papColBox.getColorThreshold());
+                compactSheet(strips, papThr);
                 clearAreas.getChildren().clear();
-                shrunkPiece.setWidth(widthSum);
-                shrunkPiece.setHeight(heightSum);
-                
-                storeShrunkPieceGraphics();
-                for(int yCI = 0; yCI < heightSum; yCI++){
-                    for(int xCI = 0; xCI < widthSum; xCI++){
-                        if(pReader.getColor(xCI, yCI).getBrightness() >= papBrightness){
-                            pWriter.setColor(xCI, yCI, Color.TRANSPARENT);
-                        }
+                //Logged as the paper threshold followed by the strips:
+                params = new double[1 + (4*strips.size())];
+                params[0] = papThr;
+                for(int sInd = 0; sInd < strips.size(); sInd++){
+                    for(int c = 0; c < 4; c++){
+                        params[1 + (4*sInd) + c] = strips.get(sInd)[c];
                     }
-                }  
+                }
+                logEdit(Actions.SHRINK, null, null, params);
             }
         }
     }
     
+    /**
+     * Stacks the strips {srcX, srcY, width, height} of the sheet; pixels
+     * lighter than papThr are left out around them (see SheetCompactor).
+     */
+    private void compactSheet(ArrayList<int[]> strips, int papThr){
+        SheetCompactor compacted;
+        WritableImage stackedImage;
+        
+        compacted = new SheetCompactor(pReader, sPContSheet.getWidth(), strips, papThr);
+        //Canvas and stored graphics are written from the stacked buffers directly:
+        shrunkPiece.setWidth(compacted.getWidth());
+        shrunkPiece.setHeight(compacted.getHeight());
+        clearShrunkPieceContext();
+        compacted.getTransparent().write(pWriter, 0, 0);
+        stackedImage = new WritableImage(Math.max(compacted.getWidth(), 1),
+                Math.max(compacted.getHeight(), 1));
+        compacted.getOpaque().write(stackedImage.getPixelWriter(), 0, 0);
+        setSheet(stackedImage);
+        pageCache.invalidateAll();
+        sheetHistory.record(pReader, sPContSheet.getWidth(), sPContSheet.getHeight(),
+                0, 0, sPContSheet.getWidth(), sPContSheet.getHeight());
+        lumPlane = (compacted.getHeight() > 0) ? compacted.getLuminancePlane() : null;
+    }
+    
     public static void updatePaperFrameGuides(){
         if(layGuidesInit != null){
             for(Node lG : layGuidesInit.getChildren()){
@@ -1845,75 +1985,65 @@ public class ShrinkPiece extends Application {
         cutImageView.setVisible(false);
         transfSelReader = null;
         transfSelWriter = null;   
+        transfSelLifted = false;
     }
     
     private void paperizeSelection(){
-        Color paperColor;
-        
-        paperColor = Color.TRANSPARENT;
         if((pWriter != null) && (transformationAreaGon.getPoints().size() > 0)){
-            
-            if(!actionsPerformed.get(actionsPerformed.size() -1).equals(Actions.SCALE_REF_AREA)){
-                generateSPGraphicsRecovery();     
-            }
-            Bounds bsTransfSel = transformationAreaGon.getBoundsInParent();
-            for(int yIndT = (int) bsTransfSel.getMinY(); yIndT <= (int) bsTransfSel.getMaxY(); yIndT++){
-                for(int xIndT = (int) bsTransfSel.getMinX(); xIndT <= (int) bsTransfSel.getMaxX(); xIndT++){
-                    if(transformationAreaGon.contains(xIndT,yIndT)){
-                        if((xIndT < (int) shrunkPiece.getWidth()) &&
-                                (yIndT < (int) shrunkPiece.getHeight())){
-                            pWriter.setColor(xIndT, yIndT, paperColor);
-                        }
-                    }
+            generateSPGraphicsRecovery();     
+            paperizeSpans(transformationAreaGon.getPoints());
+            logEdit(Actions.DELETE_SELECTED_AREA, null, null, toParams(transformationAreaGon.getPoints()));
+        }
+        
+    }
+    
+    private void paperizeSpans(List<Double> points){
+        PolygonSpans selSpans;
+        int minX, minY, maxX, maxY, x0, x1;
+        int[] paper;
+        double[] bsTransfSel;
+        
+        bsTransfSel = getPointBounds(points, 0.0, 0.0);
+        minX = Math.max((int) bsTransfSel[0], 0);
+        minY = Math.max((int) bsTransfSel[1], 0);
+        maxX = Math.min(((int) bsTransfSel[2]) + 1, (int) shrunkPiece.getWidth());
+        maxY = Math.min(((int) bsTransfSel[3]) + 1, (int) shrunkPiece.getHeight());
+        selSpans = new PolygonSpans(points, 0.0, 0.0);
+        paper = new int[Math.max(maxX - minX, 0)];
+        for(int yIndT = minY; yIndT < maxY; yIndT++){
+            int[] spans = selSpans.getSpans(yIndT);
+            for(int sInd = 0; sInd < spans.length; sInd += 2){
+                x0 = Math.max(spans[sInd], minX);
+                x1 = Math.min(spans[sInd + 1], maxX);
+                if(x1 > x0){
+                    pWriter.setPixels(x0, yIndT, x1 - x0, 1, Raster.FORMAT,
+                            paper, 0, x1 - x0);
                 }
             }
-            storeShrunkPieceGraphics();
         }
-        
+        storeShrunkPieceGraphics(minX, minY, maxX, maxY);
     }
+    
     private void transferImage(){
         if((transformationAreaGon.getPoints().size() > 5) &&
                 (pReader != null) && (pWriter != null)) {
-            int minX, minY, widthTransfSel, heightTransfSel;
-            Color paperColor;
+            int minX, minY;
+            double[] bsTransfSel;
             
-            if(!actionsPerformed.get(actionsPerformed.size()-1).equals(Actions.SCALE_REF_AREA)){
-                generateSPGraphicsRecovery();
-            }
-            paperColor = Color.TRANSPARENT;
-            Bounds bsTransfSel = transformationAreaGon.getBoundsInParent();
-            cutOutImage = new WritableImage((int)sPContImage.getWidth(), (int)sPContImage.getHeight());
+            generateSPGraphicsRecovery();
+            cutOutImage = cutOutSelection(transformationAreaGon.getPoints());
             transfSelReader = cutOutImage.getPixelReader();
             transfSelWriter = cutOutImage.getPixelWriter(); 
+            transfSelLifted = true;
             
-            minX = (int)bsTransfSel.getMinX();
-            minY = (int)bsTransfSel.getMinY();
-            if(minX < 0){ minX = 0;}
-            if(minY < 0){ minY = 0;}
-            widthTransfSel = ((int)bsTransfSel.getMaxX()-minX);
-            heightTransfSel = ((int)bsTransfSel.getMaxY()-minY);
-            if((pReader != null) && (transfSelWriter != null)){
-                transfSelWriter.setPixels(minX,minY,widthTransfSel,heightTransfSel,
-                                    pReader,minX,minY);                
-                for(int yIndT = minY; yIndT < (int) bsTransfSel.getMaxY(); yIndT++){
-                    for(int xIndT = minX; xIndT < (int) bsTransfSel.getMaxX(); xIndT++){
-                        if(!transformationAreaGon.contains(xIndT,yIndT)){ 
-                            transfSelWriter.setColor(xIndT, yIndT, Color.TRANSPARENT);                            
-                        } else {
-                            if((xIndT < (int) shrunkPiece.getWidth()) &&
-                                (yIndT < (int) shrunkPiece.getHeight())){
-                                pWriter.setColor(xIndT, yIndT, paperColor);
-                            }
-                        }
-                    }
-                }               
-            }
-            storeShrunkPieceGraphics();
-            
+            bsTransfSel = getPointBounds(transformationAreaGon.getPoints(), 0.0, 0.0);
+            minX = Math.max((int) bsTransfSel[0], 0);
+            minY = Math.max((int) bsTransfSel[1], 0);
             cutImageView.setScaleX(1.0);
             cutImageView.setScaleY(1.0);
             cutImageView.setImage(cutOutImage);
-            Rectangle2D tSelR = new Rectangle2D(minX, minY, widthTransfSel,heightTransfSel);
+            Rectangle2D tSelR = new Rectangle2D(minX, minY, ((int) bsTransfSel[2]) - minX,
+                    ((int) bsTransfSel[3]) - minY);
             cutImageView.setViewport(tSelR);
             cutImageView.setTranslateX(minX);
             cutImageView.setTranslateY(minY);
@@ -1930,62 +2060,180 @@ public class ShrinkPiece extends Application {
         
     }
     
-    private void settlePieceExcerpt(){
-        if((transfSelReader != null) && (pWriter != null)){
-            double xOffGon, yOffGon;
-            Color tSColor;   
-                         
-            Bounds bsTransfSel = transformationAreaGon.getBoundsInParent();
-            xOffGon = transformationAreaGon.getTranslateX();
-            yOffGon = transformationAreaGon.getTranslateY();
-            
-            for(int yIndT = (int) bsTransfSel.getMinY(); yIndT < (int) bsTransfSel.getMaxY(); yIndT++){
-                for(int xIndT = (int) bsTransfSel.getMinX(); xIndT < (int) bsTransfSel.getMaxX(); xIndT++){                    
-                    if(transformationAreaGon.contains(xIndT - xOffGon,yIndT - yOffGon)){                        
-                        tSColor = transfSelReader.getColor(((int) (xIndT - xOffGon)),((int)(yIndT - yOffGon)));                         
-                        if((xIndT < (int) shrunkPiece.getWidth()) &&
-                            (yIndT < (int) shrunkPiece.getHeight())){
-                            pWriter.setColor(xIndT, yIndT, tSColor);//tSColor);                             
-                        }                        
-                    }   
+    /**
+     * Moves the selection within the polygon from the sheet to a cut out of
+     * the size of the sheet; paper is left behind.
+     *
+     * @return the cut out.
+     */
+    private WritableImage cutOutSelection(List<Double> points){
+        int minX, minY, maxX, maxY, widthTransfSel, heightTransfSel, x0, x1, outside;
+        PolygonSpans selSpans;
+        int[] paper;
+        double[] bsTransfSel;
+        WritableImage cut;
+        PixelWriter cutWriter;
+        
+        bsTransfSel = getPointBounds(points, 0.0, 0.0);
+        cut = new WritableImage(sPContSheet.getWidth(), sPContSheet.getHeight());
+        cutWriter = cut.getPixelWriter(); 
+        
+        minX = (int)bsTransfSel[0];
+        minY = (int)bsTransfSel[1];
+        if(minX < 0){ minX = 0;}
+        if(minY < 0){ minY = 0;}
+        widthTransfSel = ((int)bsTransfSel[2]-minX);
+        heightTransfSel = ((int)bsTransfSel[3]-minY);
+        maxX = minX + widthTransfSel;
+        maxY = minY + heightTransfSel;
+        cutWriter.setPixels(minX,minY,widthTransfSel,heightTransfSel,
+                            pReader,minX,minY);
+        selSpans = new PolygonSpans(points, 0.0, 0.0);
+        paper = new int[Math.max(widthTransfSel, 0)];
+        //Spans move to the cut out, the gaps between them stay behind:
+        for(int yIndT = minY; yIndT < maxY; yIndT++){
+            int[] spans = selSpans.getSpans(yIndT);
+            outside = minX;
+            for(int sInd = 0; sInd <= spans.length; sInd += 2){
+                x0 = (sInd < spans.length) ? Math.max(spans[sInd], minX) : maxX;
+                x1 = (sInd < spans.length) ? Math.min(spans[sInd + 1], maxX) : maxX;
+                if(Math.min(x0, maxX) > outside){
+                    cutWriter.setPixels(outside, yIndT, Math.min(x0, maxX) - outside, 1,
+                            Raster.FORMAT, paper, 0, paper.length);
+                }
+                if((x1 > x0) && (yIndT < (int) shrunkPiece.getHeight()) &&
+                        (x0 < (int) shrunkPiece.getWidth())){
+                    pWriter.setPixels(x0, yIndT, Math.min(x1, (int) shrunkPiece.getWidth()) - x0, 1,
+                            Raster.FORMAT, paper, 0, paper.length);
                 }
+                outside = Math.max(outside, x1);
             }
-
-            storeShrunkPieceGraphics();
+        }               
+        storeShrunkPieceGraphics(minX, minY, maxX, maxY);
+        return cut;
+    }
+    
+    private void settlePieceExcerpt(){
+        if(transfSelLifted && (pWriter != null)){
+            settleCutOut(cutOutImage, transformationAreaGon.getPoints(),
+                    transformationAreaGon.getTranslateX(), transformationAreaGon.getTranslateY());
+            transfSelLifted = false;
         }
         
     }
     
-    private void scaleTransformationSelection(double scaleX, double scaleY){
-        if((transfSelReader != null) && (pWriter != null)){
-            int xOrig, yOrig, xCent, yCent, xOffset, yOffset, xCont, yCont, sWidth, sHeight;
-            Color tSColor;             
-            
-            Bounds tABoundsPreScale = preScaleTransfAGon.getBoundsInParent();
-            sWidth = (int) (tABoundsPreScale.getWidth()*scaleX);
-            sHeight = (int) (tABoundsPreScale.getHeight()*scaleY);
-            xCent = (int)(tABoundsPreScale.getMinX() + (tABoundsPreScale.getWidth()*0.5));
-            xOffset = (int)(xCent - (((double)sWidth)*0.5));
-            yCent = (int)(tABoundsPreScale.getMinY() + (tABoundsPreScale.getHeight()*0.5));
-            yOffset =  (int)(yCent - (((double)sHeight)*0.5));
-            for(int yIndT = yOffset; yIndT < (int) (yOffset + sHeight); yIndT++){
-                yOrig = yCent + ((int) (((double) (yIndT-yCent))/scaleY)); 
-                for(int xIndT = xOffset; xIndT < (int) (xOffset + sWidth); xIndT++){
-                    xOrig = xCent + ((int) (((double) (xIndT-xCent))/scaleX));
-                    if(preScaleTransfAGon.contains(xOrig, yOrig)){
-                        tSColor = transfSelReader.getColor(xOrig,yOrig);
-                        //xCont = xCent + xIndT;
-                        //yCont = yCent + yIndT;
-                        if((xIndT < (int) shrunkPiece.getWidth()) &&
-                                (yIndT < (int) shrunkPiece.getHeight())){
-                            pWriter.setColor(xIndT, yIndT, tSColor);
-                        }
+    /**
+     * Writes the selection within the polygon back from the cut out, moved
+     * by the offset.
+     */
+    private void settleCutOut(WritableImage cut, List<Double> points, double xOffGon, double yOffGon){
+        PolygonSpans selSpans;
+        PixelReader cutReader;
+        int minX, minY, maxX, maxY, x0, x1, xSrc, ySrc;
+        double[] bsTransfSel;
+                     
+        bsTransfSel = getPointBounds(points, xOffGon, yOffGon);
+        cutReader = cut.getPixelReader();
+        minX = Math.max((int) bsTransfSel[0], 0);
+        minY = Math.max((int) bsTransfSel[1], 0);
+        maxX = Math.min((int) bsTransfSel[2], (int) shrunkPiece.getWidth());
+        maxY = Math.min((int) bsTransfSel[3], (int) shrunkPiece.getHeight());
+        
+        //Spans of the moved polygon, copied from the cut out row by row:
+        selSpans = new PolygonSpans(points, xOffGon, yOffGon);
+        for(int yIndT = minY; yIndT < maxY; yIndT++){
+            int[] spans = selSpans.getSpans(yIndT);
+            ySrc = (int) (yIndT - yOffGon);
+            for(int sInd = 0; sInd < spans.length; sInd += 2){
+                x0 = Math.max(spans[sInd], minX);
+                x1 = Math.min(spans[sInd + 1], maxX);
+                xSrc = (int) (x0 - xOffGon);
+                x1 = Math.min(x1, x0 + ((int) cut.getWidth() - xSrc));
+                if((x1 > x0) && (xSrc >= 0) && (ySrc >= 0) &&
+                        (ySrc < (int) cut.getHeight())){
+                    pWriter.setPixels(x0, yIndT, x1 - x0, 1, cutReader, xSrc, ySrc);
+                }
+            }
+        }
+
+        storeShrunkPieceGraphics(minX, minY, maxX, maxY);
+    }
+    
+    /**
+     * Writes the selection within the polygon from the cut out, scaled
+     * around its center.
+     */
+    private void scaleCutOut(WritableImage cutOut, List<Double> points, double scaleX, double scaleY){
+        int xOrig, yOrig, xCent, yCent, xOffset, yOffset, sWidth, sHeight,
+                minX, maxX, runStart, cutX, cutY, cutW, cutH;
+        PolygonSpans preScaleSpans;
+        Raster cut, scaledRow;
+        int[] rowPixels;
+        double[] tABoundsPreScale;
+        
+        tABoundsPreScale = getPointBounds(points, 0.0, 0.0);
+        sWidth = (int) ((tABoundsPreScale[2] - tABoundsPreScale[0])*scaleX);
+        sHeight = (int) ((tABoundsPreScale[3] - tABoundsPreScale[1])*scaleY);
+        xCent = (int)(tABoundsPreScale[0] + ((tABoundsPreScale[2] - tABoundsPreScale[0])*0.5));
+        xOffset = (int)(xCent - (((double)sWidth)*0.5));
+        yCent = (int)(tABoundsPreScale[1] + ((tABoundsPreScale[3] - tABoundsPreScale[1])*0.5));
+        yOffset =  (int)(yCent - (((double)sHeight)*0.5));
+        //Only the selection before scaling is read from the cut out:
+        cutX = Math.max((int) tABoundsPreScale[0], 0);
+        cutY = Math.max((int) tABoundsPreScale[1], 0);
+        cutW = Math.min(((int) tABoundsPreScale[2]) + 1, (int) cutOut.getWidth()) - cutX;
+        cutH = Math.min(((int) tABoundsPreScale[3]) + 1, (int) cutOut.getHeight()) - cutY;
+        cut = Raster.read(cutOut.getPixelReader(), cutX, cutY, cutW, cutH);
+        preScaleSpans = new PolygonSpans(points, 0.0, 0.0);
+        minX = Math.max(xOffset, 0);
+        maxX = Math.min(xOffset + sWidth, (int) shrunkPiece.getWidth());
+        scaledRow = new Raster(Math.max(maxX - minX, 0), 1);
+        rowPixels = scaledRow.getPixels();
+        for(int yIndT = Math.max(yOffset, 0); yIndT < Math.min(yOffset + sHeight,
+                (int) shrunkPiece.getHeight()); yIndT++){
+            yOrig = yCent + ((int) (((double) (yIndT-yCent))/scaleY)); 
+            //Runs of the row sampled inside the selection are written at once:
+            runStart = -1;
+            for(int xIndT = minX; xIndT <= maxX; xIndT++){
+                xOrig = (xIndT < maxX) ? (xCent + ((int) (((double) (xIndT-xCent))/scaleX))) : -1;
+                if((xIndT < maxX) && preScaleSpans.contains(xOrig, yOrig) &&
+                        (xOrig >= cutX) && (xOrig < (cutX + cutW)) &&
+                        (yOrig >= cutY) && (yOrig < (cutY + cutH))){
+                    rowPixels[xIndT - minX] = cut.get(xOrig - cutX, yOrig - cutY);
+                    if(runStart < 0){
+                        runStart = xIndT;
                     }
+                } else if(runStart >= 0){
+                    scaledRow.writeRun(pWriter, 0, runStart - minX, xIndT - minX, runStart, yIndT);
+                    runStart = -1;
                 }
             }
-            storeShrunkPieceGraphics();
         }
+        storeShrunkPieceGraphics(xOffset, yOffset, xOffset + sWidth, yOffset + sHeight);
+    }
+    
+    /**
+     * @return {minX, minY, maxX, maxY} of the polygon points moved by the
+     * offset, as the bounds of the polygon node (its stroke lies inside).
+     */
+    private double[] getPointBounds(List<Double> points, double offsetX, double offsetY){
+        double[] bounds;
         
+        if(points.size() < 2){
+            return new double[4];
+        }
+        bounds = new double[]{points.get(0), points.get(1), points.get(0), points.get(1)};
+        for(int pInd = 0; pInd < (points.size() - 1); pInd += 2){
+            bounds[0] = Math.min(bounds[0], points.get(pInd));
+            bounds[1] = Math.min(bounds[1], points.get(pInd + 1));
+            bounds[2] = Math.max(bounds[2], points.get(pInd));
+            bounds[3] = Math.max(bounds[3], points.get(pInd + 1));
+        }
+        bounds[0] += offsetX;
+        bounds[1] += offsetY;
+        bounds[2] += offsetX;
+        bounds[3] += offsetY;
+        return bounds;
     }
     
     private void initResizingArrow(){
@@ -2026,7 +2274,6 @@ public class ShrinkPiece extends Application {
             sXLA = Math.abs(arrShunt.getEndX() - arrShunt.getStartX());
             sYLA = Math.abs(arrShunt.getEndY() - arrShunt.getStartY());
             transferImage();                
-            actionsPerformed.add(Actions.SCALE_REF_AREA);            
             preScaleTransfAGon.getPoints().clear();
             for(double p : transformationAreaGon.getPoints()){
                 preScaleTransfAGon.getPoints().add(p);
@@ -2075,8 +2322,11 @@ public class ShrinkPiece extends Application {
             ArrayList<Double> pScaledTransSel;
             scX = transformationAreaGon.getScaleX();
             scY = transformationAreaGon.getScaleY();
-            if((scX != 1.0) || (scY != 1.0)){
-                scaleTransformationSelection(scX, scY);
+            if(transfSelLifted && ((scX != 1.0) || (scY != 1.0))){
+                scaleCutOut(cutOutImage, preScaleTransfAGon.getPoints(), scX, scY);
+                logEdit(Actions.SCALE_REF_AREA, null, null, toParams(preScaleTransfAGon.getPoints(), scX, scY));
+            } else {
+                settlePieceExcerpt();
             }
             
             //Keep selection available for transformation:
@@ -2147,69 +2397,85 @@ public class ShrinkPiece extends Application {
     }
     
     private void storeSPContImage(){
-        if(sPContImage != null){
-            ShrunkPiece newShrunk = new ShrunkPiece(sPContImage);
-            shrunkPieces.getChildren().add(newShrunk);
-            newShrunk.setOnMousePressed((mP)->{                
-                if(sPCont != null){
-                    double sPWidth, sPHeight;
-                    
-                    generateSPGraphicsRecovery();
-                    
-                    sPWidth = shrunkPiece.getWidth();
-                    sPHeight = shrunkPiece.getHeight() + 
-                            newShrunk.getHeightOfTheShrunkPiece();
-                    
-                    if(newShrunk.getWidthOfTheShrunkPiece() > sPWidth){
-                        sPWidth = newShrunk.getWidthOfTheShrunkPiece();
-                    }
-                    
-                    sPContImage = new WritableImage((int)shrunkPiece.getWidth(),
-                        (int)shrunkPiece.getHeight());
-                    shrunkPiece.snapshot(null, sPContImage); 
-                    
-                    clearShrunkPieceContext();
-                    shrunkPiece.setWidth(sPWidth);
-                    shrunkPiece.setHeight(sPHeight);
-                    sPCont.drawImage(newShrunk.getShrunkPiece(), 0.0, 0.0);
-                    sPCont.drawImage(sPContImage, 0.0, newShrunk.getHeightOfTheShrunkPiece());
-                    
-                    storeShrunkPieceGraphics();
-                    
-                    shrunkPiecePrepended = newShrunk;
-                    indPrepShrunkPiece = shrunkPieces.getChildren().indexOf(newShrunk);
-                    shrunkPieces.getChildren().remove(newShrunk);
-                    
-                    actionsPerformed.add(Actions.SHRUNK_PIECE_PREPEND);
-                }
-            });
+        if(sPContSheet != null){
+            shrunkPieces.add(new ShrunkPiece(sPContSheet.toImage()));
         }
     }
     
+    /**
+     * Puts the stored piece on top of the sheet. Only the parts of the sheet
+     * change, the canvas draws them; the brightness of the former sheet is
+     * taken over as is.
+     */
+    private void prependShrunkPiece(ShrunkPiece newShrunk){
+        if(sPCont != null){
+            generateSPGraphicsRecovery();
+            prependedPart = newShrunk.getShrunkPiece();
+            widthBelowPrepend = (sPContSheet != null) ? sPContSheet.getWidth() : 0;
+            prependPiece(prependedPart);
+            
+            shrunkPiecePrepended = newShrunk;
+            indPrepShrunkPiece = shrunkPieces.indexOf(newShrunk);
+            shrunkPieces.remove(newShrunk);
+            
+            logEdit(Actions.SHRUNK_PIECE_PREPEND, prependedPart, null);
+        }
+    }
+    
+    private void prependPiece(Image part){
+        LuminancePlane formerPlane;
+        
+        formerPlane = null;
+        if(sPContSheet == null){
+            sPContSheet = new SheetComposition();
+            pReader = sPContSheet;
+        } else {
+            formerPlane = lumPlane;
+        }
+        sPContSheet.prepend(part);
+        dropSheetCaches();
+        drawSheet();
+        pageCache.invalidateAll();
+        sheetHistory.record(pReader, sPContSheet.getWidth(), sPContSheet.getHeight(),
+                0, 0, sPContSheet.getWidth(), sPContSheet.getHeight());
+        if(formerPlane != null){
+            lumPlane = sPContSheet.prependLuminance(formerPlane);
+        }
+    }
+    
+    /**
+     * Takes the piece off the sheet again, which leaves the parts below as
+     * they were; only when an edit wrote to the piece (or widened the sheet
+     * below it) are the graphics recovered from the history.
+     */
     private void undoShrunkPiecePrependance(){
-        recoverShrunkPieceGraphics();
+        int prepend;
+        
+        prepend = editLog.size() - 1;
+        if((sPContSheet != null) && (sPContSheet.getPartCount() > 1) &&
+                (sPContSheet.getPart(0) == prependedPart) &&
+                (sPContSheet.getWidth(1) == widthBelowPrepend)){
+            sPContSheet.removeFirst();
+            dropSheetCaches();
+            drawSheet();
+            pageCache.invalidateAll();
+            sheetHistory.record(pReader, sPContSheet.getWidth(), sPContSheet.getHeight(),
+                    0, 0, sPContSheet.getWidth(), sPContSheet.getHeight());
+            editLog.rewind(prepend);
+        } else {
+            recoverShrunkPieceGraphics();
+        }
+        prependedPart = null;
         if(shrunkPiecePrepended != null){
             if((indPrepShrunkPiece >= 0) && 
-                    (indPrepShrunkPiece < shrunkPieces.getChildren().size())){
-                shrunkPieces.getChildren().add(indPrepShrunkPiece, shrunkPiecePrepended);
+                    (indPrepShrunkPiece < shrunkPieces.size())){
+                shrunkPieces.add(indPrepShrunkPiece, shrunkPiecePrepended);
             } else {
-                shrunkPieces.getChildren().add(shrunkPiecePrepended);
+                shrunkPieces.add(shrunkPiecePrepended);
             }
         }        
     }
     
-    private void orderStroredShrunk(){
-        double sumHeight;
-        
-        sumHeight = 0.0;
-        for(Node sN : shrunkPieces.getChildren()){
-            sN.setTranslateX(0.0);
-            sN.setTranslateY(sumHeight);
-            sumHeight += ShrunkPiece.HSuP + 20.0;
-        }
-        
-    }
-    
     private void initTextButton(){
         tFLabel.setText("Insert...");
         tFLabel.setEditable(false);
@@ -2264,25 +2530,21 @@ public class ShrinkPiece extends Application {
         });
         textAddField.setOnKeyPressed((kP)->{
             if(kP.getCode().equals(KeyCode.ESCAPE)){
-                if(sPContImage != null){
-                    clearShrunkPieceContext();
-                    sPCont.drawImage(sPContImage, 0.0,0.0);
-                }     
                 hideTextEntry();
             }
         });
         textAddField.setOnAction((ac)->{
-            tPreviewOffset = null;
-            textEntered = "";
+            double[] tPoint;
+            
             if(sPCont != null){         
-                if(sPContImage != null){
-                    clearShrunkPieceContext();
-                    sPCont.drawImage(sPContImage, 0.0,0.0);
-                }
+                discardTextPreview();
+                generateSPGraphicsRecovery();
                 
-                addTextToSPContext(textAddField.getText());
+                tPoint = addTextToSPContext(textAddField.getText());
 
                 storeShrunkPieceGraphics();
+                logEdit(Actions.ENTER_TEXT, selFontFamily, textAddField.getText(), tPoint[0], tPoint[1],
+                        tPoint[2], shrunkPiece.getWidth(), shrunkPiece.getHeight());
 
                 hideTextEntry();                
             }
@@ -2345,13 +2607,33 @@ public class ShrinkPiece extends Application {
                 tPoint[2] = getEntryFontSize();
                 sPCont.fillText(newValue, tPoint[0], tPoint[1]);
                 
-                actionsPerformed.add(Actions.ENTER_TEXT);
                 return tPoint;
     }
     
+    /**
+     * Replays text entered at {x, y} of the sheet, which was w by h then.
+     */
+    private void drawText(String family, String text, double x, double y, double size,
+            double w, double h){
+        shrunkPiece.setWidth(w);
+        shrunkPiece.setHeight(h);
+        sPCont.setFont(Font.font(family, FontWeight.THIN, size));
+        sPCont.fillText(text, x, y);
+        storeShrunkPieceGraphics();
+    }
+    
+    /**
+     * Puts the stored graphics back over the preview of the entered text.
+     */
+    private void discardTextPreview(){
+        if((tPreviewOffset != null) && (sPContSheet != null)){
+            drawSheet();
+        }
+        tPreviewOffset = null;
+        textEntered = "";
+    }
+    
     private void showTextEntry(double atX, double atY){
-        storeShrunkPieceGraphics();        
-        generateSPGraphicsRecovery();        
         ornamentation = true;
         textEntry.setTranslateX(atX);
         textEntry.setTranslateY(atY);
@@ -2361,6 +2643,7 @@ public class ShrinkPiece extends Application {
     }
     
     private void hideTextEntry(){
+        discardTextPreview();
         insertionLine.setVisible(false);
         textEntry.setVisible(false);
         ornamentation = false;  
@@ -2385,47 +2668,59 @@ public class ShrinkPiece extends Application {
     }
     
     private WritableImage transperizeImage(Image aTransparent, Color forEqOrBrighterPixels){
-        double thrBrightness = forEqOrBrighterPixels.getBrightness();
         WritableImage forTransps;
+        InkMask iconMask;
+        Raster icon;
+        int w, h;
         
         PixelReader sReader = aTransparent.getPixelReader();  
-        forTransps = new WritableImage((int) (aTransparent.getWidth()), (int) (aTransparent.getHeight()));        
-        PixelWriter sWriter = forTransps.getPixelWriter();
-        Color imCol;        
-        for(int yP = 0; yP < forTransps.getHeight(); yP++){
-            for(int xP = 0; xP < forTransps.getWidth(); xP++){ 
-                imCol = sReader.getColor((int)(xP), (int)(yP));
-                if(imCol.getBrightness() >= thrBrightness){
-                    sWriter.setColor(xP, yP, Color.TRANSPARENT);
-                } else {
-                    sWriter.setColor(xP, yP, imCol);
-                }
-            }
+        w = (int) aTransparent.getWidth();
+        h = (int) aTransparent.getHeight();
+        forTransps = new WritableImage(w, h);        
+        iconMask = new InkMask(new LuminancePlane(sReader, w, h),
+                LuminancePlane.toThreshold(forEqOrBrighterPixels));
+        icon = Raster.read(sReader, 0, 0, w, h);
+        for(int yP = 0; yP < h; yP++){
+            iconMask.clearPaper(icon.getPixels(), icon.offset(0, yP), yP);
         }
+        icon.write(forTransps.getPixelWriter(), 0, 0);
         return forTransps;
     }
     
     private WritableImage scaleImage(Image preScaleImage, double xScale, double yScale){
         WritableImage forScaling;
         double widthPre, heightPre, widthScaled, heightScaled;
-        int xOrig, yOrig;
+        int yOrig, rowOrig, rowScaled;
+        int[] xOrigs, origPixels, scaledPixels;
+        Raster orig, scaled;
         
         widthPre = preScaleImage.getWidth();
         heightPre = preScaleImage.getHeight();
         widthScaled = widthPre*xScale;
         heightScaled = heightPre*yScale;
-        PixelReader sReader = preScaleImage.getPixelReader();  
         forScaling = new WritableImage((int) widthScaled, (int) heightScaled);        
-        PixelWriter sWriter = forScaling.getPixelWriter();     
+        orig = Raster.read(preScaleImage.getPixelReader(), 0, 0, (int) widthPre, (int) heightPre);
+        scaled = new Raster((int) widthScaled, (int) heightScaled);
+        origPixels = orig.getPixels();
+        scaledPixels = scaled.getPixels();
+        //Source column per target column, nearest neighbour:
+        xOrigs = new int[scaled.getWidth()];
+        for(int xP = 0; xP < xOrigs.length; xP++){
+            xOrigs[xP] = (int)(xP/xScale);
+        }
         for(int yP = 0; yP < (heightScaled - 1.0); yP++){
-            for(int xP = 0; xP < (widthScaled -1.0); xP++){ 
-                xOrig = (int)(xP/xScale);
-                yOrig = (int)(yP/yScale);
-                if((xOrig < widthPre) && (yOrig < heightPre)){
-                    sWriter.setColor(xP, yP, sReader.getColor((int)(xP/xScale), (int)(yP/yScale)));
+            yOrig = (int)(yP/yScale);
+            if(yOrig < orig.getHeight()){
+                rowOrig = orig.offset(0, yOrig);
+                rowScaled = scaled.offset(0, yP);
+                for(int xP = 0; xP < (widthScaled -1.0); xP++){ 
+                    if(xOrigs[xP] < orig.getWidth()){
+                        scaledPixels[rowScaled + xP] = origPixels[rowOrig + xOrigs[xP]];
+                    }
                 }
             }
         }
+        scaled.write(forScaling.getPixelWriter(), 0, 0);
         return forScaling;
     }
     
@@ -2495,7 +2790,7 @@ public class ShrinkPiece extends Application {
             repResizing.setTranslateYRA(sPiecePane.getBoundsInParent().getMinY());
             reps.setVisible(true);
             repResizing.setVisible(true);
-            actionsPerformed.add(Actions.REPS_SET_VISIBLE);
+            logAction(Actions.REPS_SET_VISIBLE);
         });
 
         reps.setVisible(false);
@@ -2569,7 +2864,7 @@ public class ShrinkPiece extends Application {
         repsTranslR.setVisible(true);
     }
     
-    private void drawSceneImageToPieceContext(Image sceneImage,
+    private void drawSceneImageToPieceContext(Actions action, Image sceneImage,
             double xScaleImage, double yScaleImage,
             Point2D sceneCoordinates){
         if(sPCont != null){
@@ -2578,23 +2873,29 @@ public class ShrinkPiece extends Application {
             scenePiecePane = sPiecePane.screenToLocal(sceneCoordinates);             
             if(sPiecePane.contains(scenePiecePane)){
                 shPieceLoc = shrunkPiece.screenToLocal(sceneCoordinates);
-                if(shPieceLoc.getX() > shrunkPiece.getWidth()){
-                    shrunkPiece.setWidth(shPieceLoc.getX());
-                }
-                if(shPieceLoc.getY() > shrunkPiece.getHeight()){
-                    shrunkPiece.setHeight(shPieceLoc.getY());
-                }
-                if((xScaleImage != 1.0) || (yScaleImage != 1.0)){                                            
-                    sPCont.drawImage(scaleImage(sceneImage, xScaleImage,
-                            yScaleImage), shPieceLoc.getX(), shPieceLoc.getY());
-                } else {
-                    sPCont.drawImage(sceneImage, shPieceLoc.getX(), shPieceLoc.getY());
-                }
+                drawSign(sceneImage, shPieceLoc.getX(), shPieceLoc.getY(), xScaleImage, yScaleImage);
+                logEdit(action, sceneImage, null, shPieceLoc.getX(), shPieceLoc.getY(),
+                        xScaleImage, yScaleImage);
             }            
-            storeShrunkPieceGraphics();
         }
     }
     
+    private void drawSign(Image sign, double x, double y, double xScaleImage, double yScaleImage){
+        if(x > shrunkPiece.getWidth()){
+            shrunkPiece.setWidth(x);
+        }
+        if(y > shrunkPiece.getHeight()){
+            shrunkPiece.setHeight(y);
+        }
+        if((xScaleImage != 1.0) || (yScaleImage != 1.0)){                                            
+            sPCont.drawImage(scaleImage(sign, xScaleImage,
+                    yScaleImage), x, y);
+        } else {
+            sPCont.drawImage(sign, x, y);
+        }
+        storeShrunkPieceGraphics();
+    }
+    
     private void mergeSignWithScore(){
             double scX, scY;
             Point2D sceneRepL, sceneRepR, sceneSegno;
@@ -2607,9 +2908,8 @@ public class ShrinkPiece extends Application {
                 scX = repsTranslL.getScaleX() * scX;
                 scY = lRepView.getFitHeight()/lRepView.getImage().getHeight();
                 scY = repsTranslL.getScaleY() * scY;
-                drawSceneImageToPieceContext(lRepView.getImage(),
+                drawSceneImageToPieceContext(Actions.REP_SIGN_MERGE, lRepView.getImage(),
                             scX,scY,sceneRepL);
-                actionsPerformed.add(Actions.REP_SIGN_MERGE);
                 repsTranslL.setVisible(false);
             }
             if(repsTranslR.isVisible()){
@@ -2618,17 +2918,15 @@ public class ShrinkPiece extends Application {
                 scX = repsTranslR.getScaleX() * scX;
                 scY = rRepView.getFitHeight()/rRepView.getImage().getHeight();
                 scY = repsTranslR.getScaleY() * scY;
-                drawSceneImageToPieceContext(rRepView.getImage(),
+                drawSceneImageToPieceContext(Actions.REP_SIGN_MERGE, rRepView.getImage(),
                             scX, scY,sceneRepR);
-                actionsPerformed.add(Actions.REP_SIGN_MERGE);
                 repsTranslR.setVisible(false);
             }
             if(segnoSeg.isVisible()){
                 sceneSegno = segnoSeg.localToScreen(0.0, 0.0);
-                drawSceneImageToPieceContext(
+                drawSceneImageToPieceContext(Actions.SEGNO_MERGE,
                         ((ImageView)segnoSeg.getChildren().get(0)).getImage(),
                         1.0, 1.0, sceneSegno);                
-                actionsPerformed.add(Actions.SEGNO_MERGE);
                 segnoSeg.setVisible(false);
             }
         
@@ -2741,53 +3039,42 @@ public class ShrinkPiece extends Application {
                 sPiecePane.setStyle("-fx-color-paper: rgba(" + newPapCol.getRed()*255 +
                         "," + newPapCol.getGreen()*255 + "," + newPapCol.getBlue()*255 + "," + 
                         newPapCol.getOpacity() + ");");
+                if(ph.equals(ShrinkPhase.SHRINK)){
+                    //Debounced: only the last of a series of changes is recomputed.
+                    clearAreaPreviewDelay.playFromStart();
+                }
             }            
         });
     }
     
     private void saveMarch(){
-        if(sPContImage == null){
+        if(sPContSheet == null){
             storeShrunkPieceGraphics();
         }
-        if(sPContImage != null){
+        if(sPContSheet != null){
             PageOrientation prefPageOr;
             Printer defPrinter;
             PrintSides prefSides, minSides;
-            double cW, cH, cumWidth, cumHeight, addLength,
-                    pPInch = 72.0, availableSize,
-                    selW, selH;
+            double cumWidth, cumHeight;
             int nPages, fP, lP;
-            Color cColor;
+            double printScale, prefetchScale;
             ArrayList<double[]> marches;
-            ArrayList<Group> pages = new ArrayList<Group>();
-            Group pageMarches;
-            Canvas pSelCanvas;
-            PageLayout setLayout;
+            ArrayList<ArrayList<int[]>> pages;
+            ArrayList<PageStream> printStreams;
+            PageStream prefetch;
+            PageLayout setLayout, otherLayout;
             
             cumWidth = 0.0; cumHeight = 0.0;
-            availableSize = 0.0;
-            nPages = 0; addLength = 0.0;
-            
-            //Markup printable Node:
-            cW = sPContImage.getWidth();
-            cH = sPContImage.getHeight();
-            for(int yIndT = 0; yIndT < cH; yIndT++){
-                for(int xIndT = 0; xIndT < cW; xIndT++){
-                    cColor = pReader.getColor(xIndT, yIndT);
-                    if(cColor.equals(Color.TRANSPARENT)){
-                        pWriter.setColor(xIndT, yIndT, Color.WHITE);
-                    }
-                }
-            }
-            storeShrunkPieceGraphics();
             
+            //Pages are composited over the paper when rendered, the canvas keeps its transparency.
             if(pPr != null){
                 if(pPr.isShowing()){
                     pPr.close();
                 }
             }
             pPr = new PrintSelector();
-            pPr.setContent(sPContImage, boundsMBounds);
+            pPr.setInkCounts(getInkIntegral());
+            pPr.setContent(sPContSheet.toImage(), boundsMBounds);
             pPr.setX(AWIDTH*0.5);
             pPr.setY(AHEIGHT*0.25);
             pPr.show();
@@ -2820,40 +3107,20 @@ public class ShrinkPiece extends Application {
             Paper pap = defPrinter.getPrinterAttributes().getDefaultPaper();
             PageLayout defPagLayout = defPrinter.createPageLayout(pap, prefPageOr, 
                     Printer.MarginType.HARDWARE_MINIMUM);
-            cumHeight = 0.0;
-            cumWidth = 0.0;
-            nPages = 1;
-            pageMarches = new Group();
-            switch(defPagLayout.getPageOrientation()){
-                case PORTRAIT:
-                    availableSize = Screen.getPrimary().getDpi()*
-                            (defPagLayout.getPrintableHeight()/pPInch);
-                    for(double[] mBs : marches){
-                        selH = (mBs[3]-mBs[1]);                        
-                        addLength = selH;
-                        if ((cumHeight + addLength)> availableSize){
-                            nPages++;
-                            cumHeight = addLength;
-                        } else {
-                            cumHeight += addLength;
-                        }                        
-                    }
-                    break;
-                case LANDSCAPE:
-                    availableSize = Screen.getPrimary().getDpi()*
-                            defPagLayout.getPrintableWidth()/pPInch;
-                    for(double[] mBs : marches){                        
-                        selW = (mBs[2]-mBs[0]);                        
-                        addLength = selW;
-                        if ((cumWidth + addLength)> availableSize){
-                            nPages++;
-                            cumWidth = addLength;
-                        } else {
-                            cumWidth += addLength;
-                        }                        
-                    }
-                    break;
-            }
+            //The other orientation is taken when it needs fewer pages:
+            otherLayout = defPrinter.createPageLayout(pap, prefPageOr.equals(PageOrientation.PORTRAIT) ?
+                    PageOrientation.LANDSCAPE : PageOrientation.PORTRAIT, Printer.MarginType.HARDWARE_MINIMUM);
+            nPages = packMarches(marches, defPagLayout.getPrintableWidth(),
+                    defPagLayout.getPrintableHeight()).size();
+            fP = packMarches(marches, otherLayout.getPrintableWidth(),
+                    otherLayout.getPrintableHeight()).size();
+            if(fP < nPages){
+                defPagLayout = otherLayout;
+                nPages = fP;
+            }
+            nPages = Math.max(nPages, 1);
+            pPr.setPageSize(defPagLayout.getPrintableWidth()/DOTS_PER_POINT,
+                    defPagLayout.getPrintableHeight()/DOTS_PER_POINT);
             prMarch.getJobSettings().setPageLayout(defPagLayout);
             prMarch.getJobSettings().setPrintSides(prefSides);
             prMarch.getJobSettings().setPageRanges(new PageRange(1,nPages));
@@ -2863,60 +3130,14 @@ public class ShrinkPiece extends Application {
                 }
                 setLayout = prMarch.getJobSettings().getPageLayout();
                 //After setting page layout:
-                nPages = 1;
-                pages.clear();
-                cumWidth = 0.0;
-                cumHeight = 0.0;
                 marches = pPr.getPrintSelections();
                 if(marches.size() > 0){
-                    switch(setLayout.getPageOrientation()){
-                        case PORTRAIT:
-                            availableSize = Screen.getPrimary().getDpi()*
-                                    (setLayout.getPrintableHeight()/pPInch);
-                            for(double[] mBs : marches){
-                                selW = (mBs[2]-mBs[0]);
-                                selH = (mBs[3]-mBs[1]);
-                                pSelCanvas = new Canvas();                            
-                                drawSelectionToCanvas(pSelCanvas, mBs[0], mBs[1], selW, selH);
-                                addLength = selH;
-                                if ((cumHeight + addLength)> availableSize){
-                                    nPages++;
-                                    pages.add(pageMarches);
-                                    pageMarches = new Group();
-                                    cumHeight = 0.0;
-                                }   
-                                pSelCanvas.setTranslateY(cumHeight);
-                                pageMarches.getChildren().add(pSelCanvas);
-                                cumHeight += addLength;
-                            }
-                            if(pageMarches.getChildren().size() > 0){
-                                pages.add(pageMarches);
-                            }
-                            break;
-                        case LANDSCAPE:
-                            availableSize = Screen.getPrimary().getDpi()*
-                                    setLayout.getPrintableWidth()/pPInch;
-                            for(double[] mBs : marches){
-                                selW = (mBs[2]-mBs[0]);
-                                selH = (mBs[3]-mBs[1]);
-                                pSelCanvas = new Canvas();
-                                drawSelectionToCanvas(pSelCanvas, mBs[0], mBs[1], selW, selH);                       
-                                addLength = selW;
-                                if ((cumWidth + addLength)> availableSize){
-                                    nPages++;
-                                    pages.add(pageMarches);
-                                    pageMarches = new Group();
-                                    cumWidth = 0.0;
-                                }        
-                                pSelCanvas.setTranslateX(cumWidth);
-                                pageMarches.getChildren().add(pSelCanvas);
-                                cumWidth += addLength;
-                            }
-                            if(pageMarches.getChildren().size() > 0){
-                                pages.add(pageMarches);
-                            }
-                            break;
-                    }
+                    pages = packMarches(marches, setLayout.getPrintableWidth(),
+                            setLayout.getPrintableHeight());
+                    //The first pages are rendered while the print dialog is showing:
+                    prefetchScale = getPrintScale(prMarch);
+                    prefetch = streamPages(pages, 0, pages.size() - 1, prefetchScale);
+                    nPages = pages.size();
                     fP = 1;
                     lP = nPages;
                     prMarch.getJobSettings().setPageRanges(new PageRange(fP, lP));
@@ -2930,17 +3151,22 @@ public class ShrinkPiece extends Application {
                         if(pPr.isShowing()){
                             pPr.close();
                         }
+                        printScale = getPrintScale(prMarch);
+                        printStreams = new ArrayList<PageStream>();
                         PageRange[] pRToPRint = prMarch.getJobSettings().getPageRanges();
                         if(pRToPRint != null){
                             for(int pRangeIndex = 0; pRangeIndex < pRToPRint.length; pRangeIndex++){
                                 fP = pRToPRint[pRangeIndex].getStartPage();
                                 lP = pRToPRint[pRangeIndex].getEndPage();
-                                addRangeToPrint(prMarch, fP, lP, pages);
+                                printStreams.add(reuseOrStreamPages(prefetch, prefetchScale,
+                                        pages, fP - 1, lP - 1, printScale));
+                                prefetch = null;
                             }
                         } else {
-                            addRangeToPrint(prMarch, fP, lP, pages);
+                            printStreams.add(reuseOrStreamPages(prefetch, prefetchScale,
+                                    pages, fP - 1, lP - 1, printScale));
                         }                    
-                        prMarch.endJob();
+                        spoolPrint(prMarch, printStreams, pages, printScale);
                     } else {
                         if(pPr.isShowing()){
                             pPr.close();
@@ -2959,57 +3185,296 @@ public class ShrinkPiece extends Application {
         }
     }    
     
-    private void drawSelectionToCanvas(Canvas toDrawTo, double minX, double minY, 
-            double  width, double height){
-        double mX, mY;
-        if(sPContImage != null){
-            mX = sPContImage.getWidth();
-            if(minX < mX){
-                mX = minX;
+    /**
+     * @return the pages [firstPage, lastPage] of selections, rendered from
+     * the stored graphics a few ahead of the one taken (or from the page
+     * cache).
+     */
+    private PageStream streamPages(ArrayList<ArrayList<int[]>> pages, int firstPage,
+            int lastPage, double scale){
+        return new PageStream(pageCache, sPContSheet.share(), sPContSheet.getWidth(),
+                sPContSheet.getHeight(), pages, firstPage, lastPage, scale);
+    }
+    
+    /**
+     * @return the prefetched stream when it streams the pages [firstPage,
+     * lastPage] at the scale asked for, else a new stream of them.
+     */
+    private PageStream reuseOrStreamPages(PageStream prefetch, double prefetchScale,
+            ArrayList<ArrayList<int[]>> pages, int firstPage, int lastPage, double scale){
+        if((prefetch != null) && (prefetchScale == scale) && (firstPage == 0) &&
+                (lastPage >= (pages.size() - 1)) && (prefetch.getNextIndex() == 0)){
+            return prefetch;
+        }
+        return streamPages(pages, firstPage, lastPage, scale);
+    }
+    
+    /**
+     * @return printer pixels per sheet pixel: the resolution of the job, or
+     * the whole fraction of it within PRINT_DPI_LIMIT so printer pixels
+     * still cover page pixels exactly.
+     */
+    private double getPrintScale(PrinterJob job){
+        PrintResolution resolution;
+        double dpi;
+        
+        resolution = job.getJobSettings().getPrintResolution();
+        dpi = (resolution != null) ? Math.max(resolution.getFeedResolution(),
+                resolution.getCrossFeedResolution()) : 0.0;
+        if(dpi <= 0.0){
+            dpi = PRINT_DPI_LIMIT;
+        }
+        dpi /= Math.ceil(dpi/PRINT_DPI_LIMIT);
+        return dpi*DOTS_PER_POINT/72.0;
+    }
+    
+    /**
+     * @return the selections packed on pages of the printable size (in
+     * points), turned where the print selector allows it: as the print
+     * selector packed them in the background, or else first fit at once.
+     */
+    private ArrayList<ArrayList<int[]>> packMarches(ArrayList<double[]> marches,
+            double printableWidth, double printableHeight){
+        ArrayList<ArrayList<int[]>> pages;
+        
+        pages = pPr.getPackedPages(printableWidth/DOTS_PER_POINT, printableHeight/DOTS_PER_POINT);
+        if(pages == null){
+            pages = new PagePacker(printableWidth/DOTS_PER_POINT, printableHeight/DOTS_PER_POINT,
+                    pPr.isRotationAllowed(), 0).pack(marches,
+                    sPContSheet.getWidth(), sPContSheet.getHeight(), null);
+        }
+        return pages;
+    }
+    
+    /**
+     * Writes the print selections to a PDF file of A5 pages, chosen by the
+     * user, without going through a printer. A TIFF file instead archives the
+     * whole compacted sheet. Both are bilevel, with the paper color as
+     * threshold.
+     */
+    private void exportMarchPdf(){
+        ArrayList<double[]> marches;
+        FileChooser pdfChooser;
+        FileChooser.ExtensionFilter tiffFilter;
+        File pdfFile;
+        int papThr;
+        
+        if((pPr != null) && (sPContSheet != null)){
+            marches = pPr.getPrintSelections();
+            pdfChooser = new FileChooser();
+            pdfChooser.setTitle("Export PDF");
+            tiffFilter = new FileChooser.ExtensionFilter("TIFF (whole sheet)", "*.tif", "*.tiff");
+            pdfChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("PDF", "*.pdf"));
+            pdfChooser.getExtensionFilters().add(tiffFilter);
+            pdfFile = pdfChooser.showSaveDialog(stageShrinker);
+            if(pdfFile != null){
+                papThr = LuminancePlane.toThreshold(papColBox.getColorThreshold());
+                try {
+                    if((pdfChooser.getSelectedExtensionFilter() == tiffFilter) ||
+                            pdfFile.getName().toLowerCase().matches(".*\\.tiff?")){
+                        try (OutputStream tiffOut = new BufferedOutputStream(
+                                new FileOutputStream(pdfFile))) {
+                            CcittG4Encoder.writeTiff(tiffOut, Raster.read(pReader, 0, 0,
+                                    sPContSheet.getWidth(), sPContSheet.getHeight()),
+                                    papThr, 72.0/DOTS_PER_POINT);
+                        }
+                    } else if(marches.size() > 0){
+                        writeMarchPdf(pdfFile, marches, papThr);
+                    }
+                } catch (IOException ex) {
+                    System.out.println("Export could not be written: " + ex);
+                }
             }
-            if((mX + width)>sPContImage.getWidth()){
-                width = sPContImage.getWidth() - mX;
+        }
+    }
+    
+    /**
+     * Packs the selections on A5 pages, either way up (whichever takes fewer
+     * pages), and writes them on the spooling thread, so neither the packing
+     * budget nor the coding holds up editing.
+     */
+    private void writeMarchPdf(final File pdfFile, final ArrayList<double[]> marches,
+            final int paperThreshold){
+        final SheetComposition sheet;
+        final int sheetW, sheetH;
+        final boolean rotationAllowed;
+        
+        sheet = sPContSheet.share();
+        sheetW = sPContSheet.getWidth();
+        sheetH = sPContSheet.getHeight();
+        rotationAllowed = pPr.isRotationAllowed();
+        printSpooler.execute(()->{
+            double pageW, pageH;
+            int pInd;
+            ArrayList<ArrayList<int[]>> pages, landscapePages;
+            PageStream pageStream;
+            Raster pageRaster;
+            
+            pageW = PdfWriter.A5_WIDTH;
+            pageH = PdfWriter.A5_HEIGHT;
+            pages = new PagePacker(pageW/DOTS_PER_POINT, pageH/DOTS_PER_POINT, rotationAllowed,
+                    PACKING_MILLIS).pack(marches, sheetW, sheetH, null);
+            landscapePages = new PagePacker(pageH/DOTS_PER_POINT, pageW/DOTS_PER_POINT, rotationAllowed,
+                    PACKING_MILLIS).pack(marches, sheetW, sheetH, null);
+            if(landscapePages.size() < pages.size()){
+                pages = landscapePages;
+                pageW = PdfWriter.A5_HEIGHT;
+                pageH = PdfWriter.A5_WIDTH;
+            }
+            //Sheet pixels as they are, the PDF viewer or printer scales:
+            pageStream = new PageStream(pageCache, sheet, sheetW, sheetH, pages, 0,
+                    pages.size() - 1, 1.0);
+            try (PdfWriter pdf = new PdfWriter(pdfFile)) {
+                while(pageStream.hasNext()){
+                    pdf.beginPage(pageW, pageH);
+                    pInd = pageStream.getNextIndex();
+                    pageRaster = pageStream.next();
+                    if(pageRaster != null){
+                        pdf.drawBilevelImage(pageRaster, paperThreshold, 0.0, 0.0,
+                                pageRaster.getWidth()*DOTS_PER_POINT, pageRaster.getHeight()*DOTS_PER_POINT);
+                    }
+                    for(int[] sel : pages.get(pInd)){
+                        pdf.strokeDashedRect(sel[4]*DOTS_PER_POINT, sel[5]*DOTS_PER_POINT,
+                                PageCache.getPlacedWidth(sel)*DOTS_PER_POINT,
+                                PageCache.getPlacedHeight(sel)*DOTS_PER_POINT, DOTS_PER_POINT);
+                    }
+                    pdf.endPage();
+                }
+            } catch (IOException ex) {
+                System.out.println("Export could not be written: " + ex);
             }
-            mY = sPContImage.getHeight();
-            if(minY < mY){
-                mY = minY;
+        });
+    }
+    
+    /**
+     * Prints the streamed pages on the spooling thread, so editing can go on
+     * meanwhile; the job ends after the last page, or is cancelled from its
+     * progress window. Jobs started while one is spooling wait their turn.
+     */
+    private void spoolPrint(PrinterJob job, ArrayList<PageStream> printStreams,
+            ArrayList<ArrayList<int[]>> pages, double printScale){
+        final Task<Void> spooling;
+        final int nPages;
+        int total;
+        
+        total = 0;
+        for(PageStream pageStream : printStreams){
+            total += pageStream.getRemaining();
+        }
+        nPages = total;
+        spooling = new Task<Void>(){
+            @Override
+            protected Void call(){
+                int printed = 0;
+                
+                updateProgress(0, nPages);
+                for(PageStream pageStream : printStreams){
+                    while(pageStream.hasNext() && !isCancelled() &&
+                            !Thread.currentThread().isInterrupted()){
+                        updateMessage("Pagina " + (printed + 1) + " van " + nPages);
+                        printStreamedPage(job, pageStream, pages, printScale);
+                        printed++;
+                        updateProgress(printed, nPages);
+                    }
+                }
+                if(isCancelled() || Thread.currentThread().isInterrupted()){
+                    job.cancelJob();
+                } else {
+                    job.endJob();
+                }
+                return null;
             }
-            if((mY + height)>sPContImage.getHeight()){
-                height = sPContImage.getHeight() - mY;
+            
+            @Override
+            protected void failed(){
+                System.out.println("Printing failed: " + getException());
+                job.cancelJob();
             }
-            toDrawTo.setWidth(width);
-            toDrawTo.setHeight(height);
-            toDrawTo.getGraphicsContext2D().drawImage(sPContImage, mX,mY,
-                    width, height, 0.0, 0.0, width, height);            
-            toDrawTo.getGraphicsContext2D().setLineDashes(1.0,1.0);
-            toDrawTo.getGraphicsContext2D().strokeRect(0.0, 0.0, width*2.0, height);
-        }
+        };
+        new PrintProgress(spooling).show();
+        printSpooler.execute(spooling);
     }
     
-    private void addRangeToPrint(PrinterJob fromJob, int firstPageIndex,
-            int lastPageIndex, ArrayList<Group> virtualPages){
-        Group scaledPage;
-        
-        firstPageIndex -= 1;
-        lastPageIndex -= 1;
-        
-        for(int pInd = firstPageIndex; pInd <= lastPageIndex; pInd++){ 
-            if((pInd > -1) && (pInd < virtualPages.size())){ 
-                scaledPage = virtualPages.get(pInd);
-                scaledPage.setScaleX(DOTS_PER_POINT);                
-                scaledPage.setScaleY(DOTS_PER_POINT);
-                scaledPage.setTranslateX(0.0-scaledPage.getBoundsInParent().getMinX());
-                scaledPage.setTranslateY(0.0-scaledPage.getBoundsInParent().getMinY());
-                fromJob.printPage(scaledPage);  
+    /**
+     * Prints the next page of the stream, rendered for the printer
+     * resolution: each image pixel on a printer pixel, without scaling any
+     * node. Runs on any thread.
+     */
+    private void printStreamedPage(PrinterJob toJob, PageStream pageStream,
+            ArrayList<ArrayList<int[]>> pages, double printScale){
+        Group printPage;
+        Raster pageRaster;
+        WritableImage pageImage;
+        ImageView pageView;
+        Rectangle guide;
+        int pInd;
+        
+        if(pageStream.hasNext()){
+            pInd = pageStream.getNextIndex();
+            pageRaster = pageStream.next();
+            if(pageRaster != null){
+                pageImage = new WritableImage(Math.max(pageRaster.getWidth(), 1),
+                        Math.max(pageRaster.getHeight(), 1));
+                pageRaster.write(pageImage.getPixelWriter(), 0, 0);
+                pageView = new ImageView(pageImage);
+                pageView.setFitWidth(pageImage.getWidth()*DOTS_PER_POINT/printScale);
+                pageView.setFitHeight(pageImage.getHeight()*DOTS_PER_POINT/printScale);
+                printPage = new Group(pageView);
+                //Dashed cutting guides around the selections, in points:
+                for(int[] sel : pages.get(pInd)){
+                    guide = new Rectangle(sel[4]*DOTS_PER_POINT, sel[5]*DOTS_PER_POINT,
+                            PageCache.getPlacedWidth(sel)*DOTS_PER_POINT,
+                            PageCache.getPlacedHeight(sel)*DOTS_PER_POINT);
+                    guide.setFill(null);
+                    guide.setStroke(Color.BLACK);
+                    guide.setStrokeWidth(DOTS_PER_POINT);
+                    guide.setStrokeType(StrokeType.INSIDE);
+                    guide.getStrokeDashArray().addAll(DOTS_PER_POINT, DOTS_PER_POINT);
+                    printPage.getChildren().add(guide);
+                }
+                toJob.printPage(printPage);  
             }
         }
     }
 
     private void generateSPGraphicsRecovery(){
         if(shrunkPiece != null){
-            preModificationImage = new WritableImage((int)shrunkPiece.getWidth(),
-                        (int)shrunkPiece.getHeight());
-            shrunkPiece.snapshot(null, preModificationImage);
+            if(!sheetHistory.hasState()){
+                //Graphics drawn before any store are taken in once:
+                if((shrunkPiece.getWidth() >= 1.0) && (shrunkPiece.getHeight() >= 1.0)){
+                    WritableImage initialGraphics = new WritableImage((int)shrunkPiece.getWidth(),
+                            (int)shrunkPiece.getHeight());
+                    shrunkPiece.snapshot(null, initialGraphics);
+                    sheetHistory.record(initialGraphics.getPixelReader(), (int) initialGraphics.getWidth(),
+                            (int) initialGraphics.getHeight(), 0, 0, (int) initialGraphics.getWidth(),
+                            (int) initialGraphics.getHeight());
+                } else {
+                    sheetHistory.record(null, 0, 0, 0, 0, 0, 0);
+                }
+            }
+            editLog.discardRedo();
+            checkpointIfDue(editLog.size());
+        }
+    }
+    
+    /**
+     * Takes a checkpoint of the sheet every CHECKPOINT_EDITS sheet edits, so
+     * an undo replays no more than that.
+     */
+    private void checkpointIfDue(int mark){
+        int lastMark, edits;
+        
+        lastMark = sheetHistory.getLastMark();
+        edits = 0;
+        if((lastMark >= 0) && (lastMark <= mark)){
+            for(int ind = lastMark; ind < mark; ind++){
+                if(SHEET_EDITS.contains(editLog.get(ind))){
+                    edits++;
+                }
+            }
+        }
+        if((lastMark < 0) || (lastMark > mark) || (edits >= CHECKPOINT_EDITS)){
+            sheetHistory.checkpoint(mark);
         }
     }
     
@@ -3023,23 +3488,25 @@ public class ShrinkPiece extends Application {
     private void handleUndoRequest(){
         int sPerfActions;
         Actions lastAction, actionBeforeLast;
+        boolean graphicsRecovered;
         
+        graphicsRecovered = false;
         lastAction = null;
         actionBeforeLast = null;
         
-        sPerfActions = actionsPerformed.size();
+        sPerfActions = editLog.size();
         if(sPerfActions > 0){
-            lastAction = actionsPerformed.get(sPerfActions - 1);
+            lastAction = editLog.get(sPerfActions - 1);
             if(sPerfActions > 1){
-                actionBeforeLast = actionsPerformed.get(sPerfActions - 2);
+                actionBeforeLast = editLog.get(sPerfActions - 2);
             }    
             if(lastAction.equals(Actions.REPS_SET_VISIBLE)){
                 escapeRepPlacement();
                 if(sPerfActions > 0){
-                    lastAction = actionsPerformed.get(sPerfActions - 1);
+                    lastAction = editLog.get(sPerfActions - 1);
                 }
                 if(sPerfActions > 1){
-                    actionBeforeLast = actionsPerformed.get(sPerfActions - 2);
+                    actionBeforeLast = editLog.get(sPerfActions - 2);
                 } 
             }
             switch(lastAction){
@@ -3047,8 +3514,7 @@ public class ShrinkPiece extends Application {
                 case REP_SIGN_MERGE:
                 case SEGNO_MERGE:
                 case ENTER_TEXT:
-                    recoverShrunkPieceGraphics();                                 
-                    actionsPerformed.clear();
+                    graphicsRecovered = recoverShrunkPieceGraphics();
                     break;
                 case ESCAPE_TEXT_ENTRY:
                 case ESCAPE_SEGNOSEG:
@@ -3058,78 +3524,330 @@ public class ShrinkPiece extends Application {
                 case ESCAPE_REFACTORING:
                     break;
                 case IMAGE_IMPORT:                                       
-                    actionsPerformed.clear();
                     undoImportClipboardImage(); 
+                    clearEditLog();
                     break;
                 case PIECE_CROP:                    
                     discardClearAreas();                                 
-                    actionsPerformed.clear();
                     undoCropImage();       
+                    clearEditLog();
                     break;
                 case ESCAPE_SHRINK:
                     setClearAreas();
                     break;
                 case SHRINK:                    
-                    recoverShrunkPieceGraphics();
-                    actionsPerformed.clear();
+                    graphicsRecovered = recoverShrunkPieceGraphics();
                     setClearAreas();                    
                     break;
                 case DELETE_SHRINK_AREA:
                     restoreDeletedClearArea();
                     break;
                 case SCALE_REF_AREA:
-                    recoverShrunkPieceGraphics();
+                    graphicsRecovered = recoverShrunkPieceGraphics();
                     resetTransformationSelection();
-                    actionsPerformed.clear();
                 case ADD_REF_AREA:
                 case COMPLETE_REF_SEL:
                     resetTransformationSelection();
                     break;
                 case DELETE_SELECTED_AREA:
-                    discardClearAreas();
-                    recoverShrunkPieceGraphics();
-                    actionsPerformed.clear();
-                    break;
                 case SETTLE_REF_AREA:
                     discardClearAreas();
-                    recoverShrunkPieceGraphics();
-                    actionsPerformed.clear();
+                    graphicsRecovered = recoverShrunkPieceGraphics();
                     break;                
                 case SAVE_MARCH:
                     saveMarch();
                     break;     
                 case SHRUNK_PIECE_PREPEND:
                     undoShrunkPiecePrependance();
-                    actionsPerformed.clear();
+                    clearEditLog();
                     break;
             }
-            if(actionsPerformed.size()>0){
-                actionsPerformed.remove(actionsPerformed.size() - 1);
+            //Recovered graphics rewound the log to before the edit:
+            if(!graphicsRecovered && !editLog.isEmpty()){
+                editLog.removeLast();
+                sheetHistory.discardAfter(editLog.size());
             }
         }
     }
     
-    private void recoverShrunkPieceGraphics(){
-        if(preModificationImage != null){
-            double w, h;
-            
-            w = preModificationImage.getWidth();
-            h = preModificationImage.getHeight();
-            
+    private void handleRedoRequest(){
+        int from;
+        List<EditLog.Edit<Actions>> redone;
+        
+        if(editLog.canForward()){
+            from = editLog.size();
+            redone = editLog.forward();
+            replayEdits(from, from + redone.size());
+            for(EditLog.Edit<Actions> edit : redone){
+                if(edit.getAction().equals(Actions.SHRINK)){
+                    discardClearAreas();
+                }
+            }
+        }
+    }
+    
+    private void logAction(Actions action){
+        logEdit(action, null, null);
+    }
+    
+    /**
+     * Logs an edit with what it was performed with; logging drops what
+     * could be redone, checkpoints included.
+     */
+    private void logEdit(Actions action, Object source, String text, double... params){
+        if(editLog.add(action, source, text, params)){
+            sheetHistory.discardAfter(editLog.size() - 1);
+        }
+    }
+    
+    /**
+     * The log starts over from the current graphics.
+     */
+    private void clearEditLog(){
+        editLog.clear();
+        sheetHistory.clearCheckpoints();
+    }
+    
+    /**
+     * Returns to the graphics before the last sheet edit: the checkpoint
+     * before it is restored and the edits since that checkpoint are
+     * replayed. The edits from the last sheet edit on are kept for a redo.
+     */
+    private boolean recoverShrunkPieceGraphics(){
+        int target, mark;
+        
+        target = editLog.lastIndexOf(SHEET_EDITS);
+        if(target < 0){
+            return false;
+        }
+        mark = sheetHistory.restore(target);
+        if(mark < 0){
+            return false;
+        }
+        restoreHistoryGraphics();
+        replayEdits(mark, target);
+        editLog.rewind(target);
+        return true;
+    }
+    
+    /**
+     * Performs the sheet edits logged within [from, to) again.
+     */
+    private void replayEdits(int from, int to){
+        for(EditLog.Edit<Actions> edit : editLog.getEdits(from, to)){
+            applyEdit(edit);
+        }
+    }
+    
+    private void applyEdit(EditLog.Edit<Actions> edit){
+        double[] params;
+        List<Double> points;
+        ArrayList<int[]> strips;
+        
+        params = edit.getParams();
+        switch(edit.getAction()){
+            case IMAGE_IMPORT:
+                //An import without a clipboard image drew nothing:
+                if(edit.getSource() instanceof Image){
+                    drawImportedImage((Image) edit.getSource());
+                }
+                break;
+            case PIECE_CROP:
+                drawCroppedPiece((Image) edit.getSource(), params[0], params[1], params[2],
+                        params[3], params[4], params[5]);
+                break;
+            case SHRINK:
+                strips = new ArrayList<int[]>();
+                for(int pInd = 1; (pInd + 3) < params.length; pInd += 4){
+                    strips.add(new int[]{(int) params[pInd], (int) params[pInd + 1],
+                        (int) params[pInd + 2], (int) params[pInd + 3]});
+                }
+                compactSheet(strips, (int) params[0]);
+                break;
+            case DELETE_SELECTED_AREA:
+                paperizeSpans(toPoints(params, 0));
+                break;
+            case SCALE_REF_AREA:
+                points = toPoints(params, 2);
+                scaleCutOut(cutOutSelection(points), points, params[0], params[1]);
+                break;
+            case SETTLE_REF_AREA:
+                points = toPoints(params, 2);
+                settleCutOut(cutOutSelection(points), points, params[0], params[1]);
+                break;
+            case ENTER_TEXT:
+                drawText((String) edit.getSource(), edit.getText(), params[0], params[1],
+                        params[2], params[3], params[4]);
+                break;
+            case REP_SIGN_MERGE:
+            case SEGNO_MERGE:
+                drawSign((Image) edit.getSource(), params[0], params[1], params[2], params[3]);
+                break;
+            case SHRUNK_PIECE_PREPEND:
+                prependPiece((Image) edit.getSource());
+                break;
+        }
+    }
+    
+    /**
+     * @return the leading values followed by the polygon points, as logged.
+     */
+    private double[] toParams(List<Double> points, double... leading){
+        double[] params = new double[leading.length + points.size()];
+        
+        System.arraycopy(leading, 0, params, 0, leading.length);
+        for(int pInd = 0; pInd < points.size(); pInd++){
+            params[leading.length + pInd] = points.get(pInd);
+        }
+        return params;
+    }
+    
+    private List<Double> toPoints(double[] params, int from){
+        ArrayList<Double> points = new ArrayList<Double>();
+        
+        for(int pInd = from; pInd < params.length; pInd++){
+            points.add(params[pInd]);
+        }
+        return points;
+    }
+    
+    /**
+     * Swaps the tiles an undo or redo changed into the canvas and the stored
+     * graphics, in place; only a changed size redraws the whole sheet.
+     */
+    private void restoreHistoryGraphics(){
+        int w, h;
+        int[] changed;
+        boolean resized;
+        
+        w = sheetHistory.getWidth();
+        h = sheetHistory.getHeight();
+        resized = sheetHistory.isResized() || (sPContSheet == null);
+        if(resized){
             clearShrunkPieceContext();
             shrunkPiece.setWidth(w);
             shrunkPiece.setHeight(h);
-            sPCont.drawImage(preModificationImage, 0.0, 0.0);
-            storeShrunkPieceGraphics();
+            setSheet(new WritableImage(Math.max(w, 1), Math.max(h, 1)));
+        }
+        changed = sheetHistory.writeRestoredTiles(pWriter, sPContSheet.getPixelWriter());
+        if(!resized && (changed != null)){
+            updateSheetCaches(changed[0], changed[1], changed[2], changed[3]);
+            pageCache.invalidate(changed[0], changed[1], changed[2], changed[3]);
+        } else if(resized){
+            pageCache.invalidateAll();
+        }
+    }
+    
+    private void snapshotShrunkPiece(){
+        WritableImage whole = new WritableImage((int)shrunkPiece.getWidth(),
+                    (int)shrunkPiece.getHeight());
+        shrunkPiece.snapshot(null, whole);
+        setSheet(whole);
+    }
+    
+    /**
+     * The stored graphics become one image; the caches of the former ones
+     * are dropped.
+     */
+    private void setSheet(WritableImage whole){
+        if(sPContSheet == null){
+            sPContSheet = new SheetComposition();
+            pReader = sPContSheet;
         }
+        sPContSheet.set(whole);
+        dropSheetCaches();
+    }
+    
+    private void dropSheetCaches(){
+        sheetRevision++;
+        lumPlane = null;
+        inkMask = null;
+        inkIntegral = null;
+        rowIndex = null;
+    }
+    
+    /**
+     * Draws the parts of the stored graphics on the canvas, sized to them.
+     */
+    private void drawSheet(){
+        clearShrunkPieceContext();
+        shrunkPiece.setWidth(sPContSheet.getWidth());
+        shrunkPiece.setHeight(sPContSheet.getHeight());
+        sPContSheet.draw(sPCont);
+    }
+    
+    /**
+     * Reads back [minX, maxX) x [minY, maxY) of the canvas into the stored
+     * graphics; the rest of them already equals the canvas.
+     */
+    private void snapshotShrunkPiece(int minX, int minY, int maxX, int maxY){
+        SnapshotParameters dirtyArea;
+        WritableImage dirtyPixels;
+        
+        dirtyArea = new SnapshotParameters();
+        dirtyArea.setViewport(new Rectangle2D(minX, minY, maxX - minX, maxY - minY));
+        dirtyPixels = shrunkPiece.snapshot(dirtyArea, new WritableImage(maxX - minX, maxY - minY));
+        //Parts handed to a stored piece or a page stream are copied first:
+        sPContSheet.getPixelWriter().setPixels(minX, minY, maxX - minX, maxY - minY,
+                dirtyPixels.getPixelReader(), 0, 0);
     }
     
     private void storeShrunkPieceGraphics(){
         if(shrunkPiece != null){
-            sPContImage = new WritableImage((int)shrunkPiece.getWidth(),
-                        (int)shrunkPiece.getHeight());
-            shrunkPiece.snapshot(null, sPContImage);
-            pReader = sPContImage.getPixelReader();
+            snapshotShrunkPiece();
+            sheetHistory.record(pReader, sPContSheet.getWidth(), sPContSheet.getHeight(),
+                    0, 0, sPContSheet.getWidth(), sPContSheet.getHeight());
+            pageCache.invalidateAll();
+        }
+    }
+    
+    /**
+     * Stores the graphics after an edit within [minX, maxX) x [minY, maxY);
+     * the history and the cached brightness, mask, sums and row index are
+     * updated there only.
+     */
+    private void storeShrunkPieceGraphics(int minX, int minY, int maxX, int maxY){
+        if(shrunkPiece != null){
+            if((sPContSheet == null) || (sPContSheet.getWidth() != (int) shrunkPiece.getWidth()) ||
+                    (sPContSheet.getHeight() != (int) shrunkPiece.getHeight())){
+                storeShrunkPieceGraphics();
+                return;
+            }
+            minX = Math.max(minX, 0);
+            minY = Math.max(minY, 0);
+            maxX = Math.min(maxX, sPContSheet.getWidth());
+            maxY = Math.min(maxY, sPContSheet.getHeight());
+            if((minX < maxX) && (minY < maxY)){
+                snapshotShrunkPiece(minX, minY, maxX, maxY);
+            }
+            sheetHistory.record(pReader, sPContSheet.getWidth(), sPContSheet.getHeight(),
+                    minX, minY, maxX, maxY);
+            updateSheetCaches(minX, minY, maxX, maxY);
+            pageCache.invalidate(minX, minY, maxX, maxY);
+        }
+    }
+    
+    /**
+     * Updates the cached brightness, mask, sums and row index of the stored
+     * graphics within [minX, maxX) x [minY, maxY); caches that cannot follow
+     * are dropped, as the sheet keeps its size.
+     */
+    private void updateSheetCaches(int minX, int minY, int maxX, int maxY){
+        sheetRevision++;
+        if((lumPlane != null) && (lumPlane.getWidth() == sPContSheet.getWidth()) &&
+                (lumPlane.getHeight() == sPContSheet.getHeight())){
+            lumPlane.update(pReader, minX, minY, maxX, maxY);
+            if(inkMask != null){
+                inkMask.update(lumPlane, minX, minY, maxX, maxY);
+                if(inkIntegral != null){
+                    inkIntegral.update(inkMask, minX, minY);
+                }
+            }
+            if(rowIndex != null){
+                rowIndex.updateRows(lumPlane, minY, maxY);
+            }
+        } else {
+            dropSheetCaches();
         }
     }
 }
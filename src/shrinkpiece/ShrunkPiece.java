@@ -16,75 +16,189 @@
  */
 package shrinkpiece;
 
-import javafx.scene.Group;
-import javafx.scene.effect.DropShadow;
-import javafx.scene.image.ImageView;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
 import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.Rectangle;
-import javafx.scene.shape.StrokeType;
 
 /**
+ * Stored piece of a sheet. Preparing the piece (off the application thread)
+ * downsamples a thumbnail by area averaging and packs the full resolution
+ * pixels in bands (see PixelPacker); they are unpacked when the piece is
+ * taken back. The pieces used last are kept unpacked in a cache shared by
+ * all pieces. Until it is prepared a piece holds on to the image stored.
  *
  * @author P.C.T. Kolkman
  */
-public class ShrunkPiece extends Group {
+public class ShrunkPiece {
             
     public static final double WSuP = 64.0, HSuP = 80.0;
-    private double doubleBorderWidth;
-    private WritableImage shrunkPiece;
-    private ImageView sPPreview;
-    private Rectangle borderSPPrev;
-    private DropShadow suPieceShadow;
+    public static final int BAND_ROWS = 256, THUMB_BORDER = 4;
+    public static final long CACHE_BYTES = 64L*1024*1024;
+    private static final LinkedHashMap<ShrunkPiece, WritableImage> UNPACKED =
+            new LinkedHashMap<ShrunkPiece, WritableImage>(16, 0.75f, true);
+    private static long unpackedBytes = 0;
+    private final int width, height;
+    private final ArrayList<byte[]> bands;
+    private volatile Image stored;
+    private volatile WritableImage thumbnail;
     
-    public ShrunkPiece(WritableImage pieceToStore){
-        shrunkPiece = pieceToStore;
-        
-        doubleBorderWidth = 2.0*4.0;
-        borderSPPrev = new Rectangle(0.0,0.0,WSuP, HSuP);
-        borderSPPrev.setFill(Color.TRANSPARENT);
-        borderSPPrev.setStroke(Color.NAVY);
-        borderSPPrev.setStrokeWidth(0.5*doubleBorderWidth);
-        borderSPPrev.setStrokeType(StrokeType.INSIDE);
-        
-        sPPreview = new ImageView(shrunkPiece);    
-        sPPreview.setTranslateX(0.5*doubleBorderWidth);
-        sPPreview.setTranslateY(0.5*doubleBorderWidth);
-        sPPreview.setFitWidth(WSuP - doubleBorderWidth);
-        sPPreview.setFitHeight(HSuP - doubleBorderWidth);
+    /**
+     * @param pieceToStore an image that is not written to any more.
+     */
+    public ShrunkPiece(Image pieceToStore){
+        width = (int) pieceToStore.getWidth();
+        height = (int) pieceToStore.getHeight();
+        bands = new ArrayList<byte[]>();
+        stored = pieceToStore;
+        thumbnail = null;
+    }
+    
+    /**
+     * Makes the thumbnail and packs the pixels; can run on any thread.
+     */
+    public synchronized void prepare(){
+        if(stored != null){
+            packAndSample(stored.getPixelReader(), (int) WSuP - (2*THUMB_BORDER),
+                    (int) HSuP - (2*THUMB_BORDER));
+            stored = null;
+        }
+    }
+    
+    public boolean isPrepared(){
+        return stored == null;
+    }
+    
+    /**
+     * Packs the piece band by band and averages every source pixel into the
+     * thumbnail pixel it falls in, in the same pass.
+     */
+    private void packAndSample(PixelReader reader, int thumbW, int thumbH){
+        int tw, th, rows, tRow, ind, argb;
+        int[] band, tCols;
+        long[] sums;
+        int[] counts;
         
-        getChildren().addAll(sPPreview, borderSPPrev);
+        tw = Math.max(Math.min(thumbW, width), 1);
+        th = Math.max(Math.min(thumbH, height), 1);
+        sums = new long[4*tw*th];
+        counts = new int[tw*th];
+        tCols = new int[Math.max(width, 0)];
+        for(int x = 0; x < width; x++){
+            tCols[x] = (int) (((long) x*tw)/width);
+        }
+        band = new int[width*Math.min(BAND_ROWS, Math.max(height, 1))];
+        for(int y0 = 0; y0 < height; y0 += BAND_ROWS){
+            rows = Math.min(BAND_ROWS, height - y0);
+            reader.getPixels(0, y0, width, rows, Raster.FORMAT, band, 0, width);
+            bands.add(PixelPacker.pack(band, 0, width*rows, width));
+            for(int y = 0; y < rows; y++){
+                tRow = (int) (((long) (y0 + y)*th)/height)*tw;
+                for(int x = 0; x < width; x++){
+                    ind = tRow + tCols[x];
+                    argb = band[(y*width) + x];
+                    sums[4*ind] += argb >>> 24;
+                    sums[(4*ind) + 1] += (argb >> 16) & 0xff;
+                    sums[(4*ind) + 2] += (argb >> 8) & 0xff;
+                    sums[(4*ind) + 3] += argb & 0xff;
+                    counts[ind]++;
+                }
+            }
+        }
+        //Premultiplied components average straight into a premultiplied pixel:
+        band = new int[tw*th];
+        for(ind = 0; ind < band.length; ind++){
+            if(counts[ind] > 0){
+                band[ind] = (int) ((sums[4*ind]/counts[ind]) << 24) |
+                        (int) ((sums[(4*ind) + 1]/counts[ind]) << 16) |
+                        (int) ((sums[(4*ind) + 2]/counts[ind]) << 8) |
+                        (int) (sums[(4*ind) + 3]/counts[ind]);
+            }
+        }
+        thumbnail = new WritableImage(tw, th);
+        thumbnail.getPixelWriter().setPixels(0, 0, tw, th, Raster.FORMAT, band, 0, tw);
+    }
+    
+    /**
+     * @return the piece in full resolution, from the cache or unpacked.
+     */
+    public Image getShrunkPiece(){
+        Image source;
+        WritableImage full;
+        int[] band;
+        int rows;
         
-        suPieceShadow = new DropShadow();
-        suPieceShadow.setOffsetX(3.0);
-        suPieceShadow.setOffsetY(3.0); 
+        //The bands are complete once the stored image is let go:
+        source = stored;
+        if(source != null){
+            return source;
+        }
+        synchronized(UNPACKED){
+            full = UNPACKED.get(this);
+        }
+        if(full == null){
+            full = new WritableImage(Math.max(width, 1), Math.max(height, 1));
+            band = new int[width*Math.min(BAND_ROWS, Math.max(height, 1))];
+            for(int bInd = 0; bInd < bands.size(); bInd++){
+                rows = Math.min(BAND_ROWS, height - (bInd*BAND_ROWS));
+                PixelPacker.unpack(bands.get(bInd), band, 0, width*rows, width);
+                full.getPixelWriter().setPixels(0, bInd*BAND_ROWS, width, rows,
+                        Raster.FORMAT, band, 0, width);
+            }
+            cache(this, full);
+        }
+        return full;
+    }
+    
+    private static void cache(ShrunkPiece piece, WritableImage full){
+        Iterator<Map.Entry<ShrunkPiece, WritableImage>> eldest;
         
-        setOnMouseEntered((mE)->{
-            setEffect(suPieceShadow);
-        });
-        setOnMouseExited((mEx)->{
-            setEffect(null);
-        });
-        setOnMousePressed((mE)->{
-            setTranslateX(getTranslateX() + suPieceShadow.getOffsetX());
-            setTranslateY(getTranslateY() + suPieceShadow.getOffsetY());
-        });
-        setOnMouseReleased((mE)->{
-            setTranslateX(getTranslateX() - suPieceShadow.getOffsetX());
-            setTranslateY(getTranslateY() - suPieceShadow.getOffsetY());
-        });
-    }    
+        synchronized(UNPACKED){
+            if(UNPACKED.put(piece, full) == null){
+                unpackedBytes += piece.getUnpackedBytes();
+            }
+            eldest = UNPACKED.entrySet().iterator();
+            while((unpackedBytes > CACHE_BYTES) && (UNPACKED.size() > 1)){
+                unpackedBytes -= eldest.next().getKey().getUnpackedBytes();
+                eldest.remove();
+            }
+        }
+    }
+    
+    private long getUnpackedBytes(){
+        return 4L*width*height;
+    }
+    
+    /**
+     * @return the size of the packed pixels, 0 while not prepared.
+     */
+    public long getPackedBytes(){
+        long packed = 0;
+        if(!isPrepared()){
+            return 0;
+        }
+        for(byte[] band : bands){
+            packed += band.length;
+        }
+        return packed;
+    }
     
-    public WritableImage getShrunkPiece(){
-        return shrunkPiece;
+    /**
+     * @return the thumbnail, or null while the piece is not prepared.
+     */
+    public Image getThumbnail(){
+        return thumbnail;
     }
     
     public double getWidthOfTheShrunkPiece(){
-        return shrunkPiece.getWidth();
+        return width;
     }
     
     public double getHeightOfTheShrunkPiece(){
-        return shrunkPiece.getHeight();
+        return height;
     }
     
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Scratch file the undo history pages cold data out to. The file is mapped
+ * into memory in segments, so the data lives in the page cache of the system
+ * rather than on the heap. A segment is filled front to back and starts over
+ * as soon as none of its data is in use any more. The file does not grow
+ * beyond its capacity: partly used segments count in full, so a write that
+ * does not fit is refused rather than mapped on top.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class SpillFile {
+
+    public static final int SEGMENT_SIZE = 1 << 26;
+    private final ArrayList<MappedByteBuffer> segments;
+    private final ArrayList<int[]> usage; //{top, live bytes} per segment
+    private final long capacity;
+    private final int segmentSize;
+    private RandomAccessFile scratch;
+    private File scratchFile;
+    private boolean failed;
+    private long usedBytes;
+
+    /**
+     * @param capacityBytes size the file may grow to.
+     */
+    public SpillFile(long capacityBytes){
+        segments = new ArrayList<MappedByteBuffer>();
+        usage = new ArrayList<int[]>();
+        capacity = Math.max(capacityBytes, 0);
+        segmentSize = (int) Math.min(SEGMENT_SIZE, capacity);
+        scratch = null;
+        scratchFile = null;
+        failed = false;
+        usedBytes = 0;
+    }
+
+    /**
+     * @return whether data can (still) be written; the file is created on
+     * the first write.
+     */
+    public boolean isAvailable(){
+        return !failed && (segmentSize > 0);
+    }
+
+    public long getUsedBytes(){
+        return usedBytes;
+    }
+
+    /**
+     * @return the size of the file (all of it mapped).
+     */
+    public long getFileBytes(){
+        return (long) segments.size()*segmentSize;
+    }
+
+    /**
+     * @return the location of the data in the file, or -1 when it could not
+     * be written.
+     */
+    public long write(byte[] data){
+        int sInd;
+        int[] use;
+        ByteBuffer target;
+
+        if(!isAvailable() || (data.length > segmentSize)){
+            return -1;
+        }
+        for(sInd = 0; sInd < segments.size(); sInd++){
+            if((usage.get(sInd)[0] + data.length) <= segmentSize){
+                break;
+            }
+        }
+        if((sInd == segments.size()) && !addSegment()){
+            return -1;
+        }
+        use = usage.get(sInd);
+        target = segments.get(sInd).duplicate();
+        target.position(use[0]);
+        target.put(data);
+        use[0] += data.length;
+        use[1] += data.length;
+        usedBytes += data.length;
+        return ((long) sInd*segmentSize) + (use[0] - data.length);
+    }
+
+    public byte[] read(long location, int length){
+        byte[] data;
+        ByteBuffer source;
+
+        data = new byte[length];
+        source = segments.get((int) (location/segmentSize)).duplicate();
+        source.position((int) (location % segmentSize));
+        source.get(data);
+        return data;
+    }
+
+    /**
+     * Gives the space of data no longer in use free.
+     */
+    public void release(long location, int length){
+        int[] use;
+
+        if(segments.isEmpty()){
+            return;
+        }
+        use = usage.get((int) (location/segmentSize));
+        use[1] -= length;
+        usedBytes -= length;
+        if(use[1] <= 0){
+            use[0] = 0;
+            use[1] = 0;
+        }
+    }
+
+    /**
+     * Unmaps the segments, closes and deletes the file; nothing can be read
+     * or written afterwards.
+     */
+    public void close(){
+        for(MappedByteBuffer segment : segments){
+            unmap(segment);
+        }
+        segments.clear();
+        usage.clear();
+        usedBytes = 0;
+        failed = true;
+        if(scratch != null){
+            try {
+                scratch.close();
+            } catch (IOException ex){
+                System.out.println("Undo scratch file could not be closed: " + ex);
+            }
+            scratch = null;
+        }
+        if((scratchFile != null) && scratchFile.delete()){
+            scratchFile = null;
+        }
+    }
+
+    private boolean addSegment(){
+        if(((long) (segments.size() + 1)*segmentSize) > capacity){
+            return false;
+        }
+        try {
+            if(scratch == null){
+                scratchFile = File.createTempFile("shrinkpiece-undo", ".tmp");
+                scratchFile.deleteOnExit();
+                scratch = new RandomAccessFile(scratchFile, "rw");
+            }
+            segments.add(scratch.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    (long) segments.size()*segmentSize, segmentSize));
+            usage.add(new int[]{0, 0});
+            return true;
+        } catch (IOException ex){
+            System.out.println("Undo scratch file not available: " + ex);
+            failed = true;
+            return false;
+        }
+    }
+
+    /**
+     * Unmaps a segment at once where the runtime lets it (Java 8 and later
+     * differ); otherwise the mapping goes when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer segment){
+        Class<?> unsafeClass;
+        Field theUnsafe;
+        Method cleanerMethod;
+        Object cleaner;
+
+        try {
+            unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                cleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                cleanerMethod.invoke(theUnsafe.get(null), segment);
+            } catch (NoSuchMethodException ex){
+                cleanerMethod = segment.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                cleaner = cleanerMethod.invoke(segment);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex){
+            //Left to the garbage collector.
+        }
+    }
+
+}
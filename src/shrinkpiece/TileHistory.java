@@ -0,0 +1,606 @@
+/*
+ * Copyright (C) 2020 P.C.T. Kolkman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package shrinkpiece;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+
+/**
+ * Checkpoints of the sheet graphics in square tiles, for undo and redo by
+ * replaying the edits logged after a checkpoint (see EditLog). A version is a
+ * grid of references to unmodifiable tiles; versions share every tile that did
+ * not change between them, so each checkpoint costs memory for the tiles
+ * changed since the one before. Taking a checkpoint copies the grid of
+ * references only.
+ * <p>
+ * Tiles of the current graphics are kept as plain pixels. A tile that only
+ * lives on in the history is packed (see PixelPacker). The packed tiles are held within a memory budget (megabytes,
+ * system property shrinkpiece.undoBudgetMB); beyond it the tiles of the
+ * oldest checkpoints are paged out to a memory-mapped scratch file, which has
+ * a budget of its own (shrinkpiece.undoDiskMB). Beyond that the oldest
+ * checkpoints are dropped, the last one is always kept. A restore pages tiles
+ * back in. Dropped checkpoints are reported on System.out, the statistics too when the
+ * system property shrinkpiece.undoStatistics is set.
+ *
+ * @author P.C.T. Kolkman
+ */
+public class TileHistory {
+
+    public static final int TILE_SIZE = 64;
+    public static final String BUDGET_PROPERTY = "shrinkpiece.undoBudgetMB";
+    public static final String DISK_BUDGET_PROPERTY = "shrinkpiece.undoDiskMB";
+    public static final String STATISTICS_PROPERTY = "shrinkpiece.undoStatistics";
+    public static final long DEFAULT_BUDGET_MB = 256, DEFAULT_DISK_BUDGET_MB = 4096;
+    private Version current, beforeRestore;
+    private final ArrayList<Version> checkpoints;
+    private final ArrayList<Tile> spilledTiles;
+    private final SpillFile spill;
+    private final long budget, diskBudget;
+    private long historyBytes, packedTiles, packedRawBytes, packedBytes;
+    private long tilesRead, tilesReused, restores, replayFree, restoreMisses, evictedVersions;
+    private long spilledBytes, spills, pageIns;
+    private int countStamp;
+
+    public TileHistory(){
+        this(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET_MB)*1024*1024,
+                Long.getLong(DISK_BUDGET_PROPERTY, DEFAULT_DISK_BUDGET_MB)*1024*1024);
+    }
+
+    /**
+     * @param budgetBytes memory the packed history tiles may take.
+     * @param diskBudgetBytes scratch file space for tiles paged out, 0 to
+     * keep the history on the heap only.
+     */
+    public TileHistory(long budgetBytes, long diskBudgetBytes){
+        current = null;
+        beforeRestore = null;
+        checkpoints = new ArrayList<Version>();
+        budget = budgetBytes;
+        diskBudget = diskBudgetBytes;
+        spill = new SpillFile(diskBudgetBytes);
+        spilledTiles = new ArrayList<Tile>();
+        countStamp = 0;
+    }
+
+    public boolean hasState(){
+        return current != null;
+    }
+
+    public int getWidth(){
+        return (current != null) ? current.width : 0;
+    }
+
+    public int getHeight(){
+        return (current != null) ? current.height : 0;
+    }
+
+    /**
+     * Takes a checkpoint of the current graphics, marked with the number of
+     * edits logged so far (the edits the graphics are the result of).
+     */
+    public void checkpoint(int mark){
+        int last;
+
+        if(current != null){
+            discardAfter(mark);
+            last = checkpoints.size() - 1;
+            //Edits that changed nothing move the former checkpoint up:
+            if((last >= 0) && checkpoints.get(last).sameTiles(current)){
+                checkpoints.set(last, current.copy(mark));
+            } else {
+                checkpoints.add(current.copy(mark));
+            }
+        }
+    }
+
+    /**
+     * @return the mark of the last checkpoint, or -1 when there is none.
+     */
+    public int getLastMark(){
+        return checkpoints.isEmpty() ? -1 : checkpoints.get(checkpoints.size() - 1).mark;
+    }
+
+    /**
+     * Drops the checkpoints of edits that are no longer performed.
+     */
+    public void discardAfter(int mark){
+        while(!checkpoints.isEmpty() && (checkpoints.get(checkpoints.size() - 1).mark > mark)){
+            checkpoints.remove(checkpoints.size() - 1);
+        }
+    }
+
+    /**
+     * Drops every checkpoint, for a log that starts over from the current
+     * graphics.
+     */
+    public void clearCheckpoints(){
+        checkpoints.clear();
+        if(current != null){
+            trim();
+        }
+    }
+
+    /**
+     * Takes the graphics within [minX, maxX) x [minY, maxY) from the reader;
+     * tiles whose pixels did not change keep their reference. A changed size
+     * starts a new grid.
+     */
+    public void record(PixelReader reader, int w, int h, int minX, int minY, int maxX, int maxY){
+        int tx0, ty0, tx1, ty1, ind;
+        int[] pixels;
+        Tile former;
+
+        if((current == null) || (current.width != w) || (current.height != h)){
+            if(current != null){
+                for(int tInd = 0; tInd < current.tiles.length; tInd++){
+                    if((current.tiles[tInd] != null) && inHistory(current.tiles[tInd], tInd)){
+                        pack(current.tiles[tInd]);
+                    }
+                }
+            }
+            current = new Version(w, h, 0);
+            minX = 0; minY = 0; maxX = w; maxY = h;
+        }
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, w);
+        maxY = Math.min(maxY, h);
+        if((minX >= maxX) || (minY >= maxY)){
+            trim();
+            return;
+        }
+        tx0 = minX/TILE_SIZE;
+        ty0 = minY/TILE_SIZE;
+        tx1 = (maxX - 1)/TILE_SIZE;
+        ty1 = (maxY - 1)/TILE_SIZE;
+        for(int ty = ty0; ty <= ty1; ty++){
+            for(int tx = tx0; tx <= tx1; tx++){
+                ind = (ty*current.cols) + tx;
+                pixels = current.readTile(reader, tx, ty);
+                former = current.tiles[ind];
+                tilesRead++;
+                if((former != null) && Arrays.equals(former.getPixels(), pixels)){
+                    tilesReused++;
+                } else {
+                    current.tiles[ind] = new Tile(pixels, current.tileWidth(tx));
+                    if((former != null) && inHistory(former, ind)){
+                        pack(former);
+                    }
+                }
+            }
+        }
+        trim();
+    }
+
+    private boolean inHistory(Tile tile, int ind){
+        Version last;
+
+        if(!checkpoints.isEmpty()){
+            last = checkpoints.get(checkpoints.size() - 1);
+            return last.sameSize(current) && (last.tiles[ind] == tile);
+        }
+        return false;
+    }
+
+    private void pack(Tile tile){
+        if(!tile.isPacked()){
+            packedRawBytes += tile.getHeapBytes();
+            tile.pack();
+            packedBytes += tile.getHeapBytes();
+            packedTiles++;
+        }
+    }
+
+    /**
+     * Packs the tiles the swap took out of the current graphics and unpacks
+     * the tiles it brought in.
+     */
+    private void swapTiles(Version from, Version to){
+        boolean all;
+
+        all = !from.sameSize(to);
+        for(int ind = 0; ind < from.tiles.length; ind++){
+            if((from.tiles[ind] != null) && (all || (from.tiles[ind] != to.tiles[ind]))){
+                pack(from.tiles[ind]);
+            }
+        }
+        for(int ind = 0; ind < to.tiles.length; ind++){
+            if((to.tiles[ind] != null) && (all || (from.tiles[ind] != to.tiles[ind]))){
+                if(to.tiles[ind].isSpilled()){
+                    pageIns++;
+                }
+                to.tiles[ind].unpack();
+            }
+        }
+    }
+
+    /**
+     * Counts every history tile once, from the newest checkpoint back. Tiles
+     * past the memory budget are paged out, and the checkpoints from where
+     * the scratch file budget is exceeded on are dropped.
+     */
+    private void trim(){
+        ArrayList<Version> byAge;
+        long heapTotal, diskTotal;
+        int cut;
+        Version version;
+
+        countStamp++;
+        for(Tile tile : current.tiles){
+            if(tile != null){
+                tile.stamp = countStamp;
+            }
+        }
+        byAge = new ArrayList<Version>();
+        for(int vInd = checkpoints.size() - 1; vInd >= 0; vInd--){
+            byAge.add(checkpoints.get(vInd));
+        }
+        heapTotal = 0;
+        diskTotal = 0;
+        cut = -1;
+        for(int aInd = 0; aInd < byAge.size(); aInd++){
+            version = byAge.get(aInd);
+            for(Tile tile : version.tiles){
+                if((tile != null) && (tile.stamp != countStamp)){
+                    tile.stamp = countStamp;
+                    if(((heapTotal + tile.getHeapBytes()) > budget) && (diskBudget > 0)){
+                        pageOut(tile);
+                    }
+                    heapTotal += tile.getHeapBytes();
+                    diskTotal += tile.getDiskBytes();
+                }
+            }
+            if((aInd > 0) && ((heapTotal > budget) || (diskTotal > diskBudget))){
+                cut = checkpoints.size() - 1 - aInd;
+                break;
+            }
+        }
+        if(cut >= 0){
+            checkpoints.subList(0, cut + 1).clear();
+            evictedVersions += cut + 1;
+            trim();
+            System.out.println("Undo history over budget, dropped the " + (cut + 1) +
+                    " oldest checkpoint(s). " + getStatistics());
+        } else {
+            historyBytes = heapTotal;
+            spilledBytes = diskTotal;
+            releaseUnusedSpills();
+        }
+    }
+
+    private void pageOut(Tile tile){
+        pack(tile);
+        if(!tile.isSpilled() && tile.spillTo(spill)){
+            spilledTiles.add(tile);
+            spills++;
+        }
+    }
+
+    /**
+     * Frees the scratch space of paged out tiles no state holds any more.
+     */
+    private void releaseUnusedSpills(){
+        Tile tile;
+
+        for(int tInd = spilledTiles.size() - 1; tInd >= 0; tInd--){
+            tile = spilledTiles.get(tInd);
+            if(!tile.isSpilled()){
+                spilledTiles.remove(tInd);
+            } else if(tile.stamp != countStamp){
+                tile.release();
+                spilledTiles.remove(tInd);
+            }
+        }
+    }
+
+    /**
+     * @return memory use, packing ratio and hit rates of the history.
+     */
+    public String getStatistics(){
+        return String.format("Undo history: %d checkpoint(s), %.1f MB of %.1f MB budget; " +
+                "packed %d tile(s) %.1f MB -> %.1f MB; tiles unchanged on store %.1f%%; " +
+                "paged out %.1f MB in a %.1f MB file of %.1f MB budget (%d out, %d in); " +
+                "restores %d (%d without replay), misses %d; evicted %d checkpoint(s).",
+                checkpoints.size(), historyBytes/1048576.0, budget/1048576.0,
+                packedTiles, packedRawBytes/1048576.0, packedBytes/1048576.0,
+                (tilesRead > 0) ? (100.0*tilesReused/tilesRead) : 0.0,
+                spilledBytes/1048576.0, spill.getFileBytes()/1048576.0, diskBudget/1048576.0,
+                spills, pageIns,
+                restores, replayFree, restoreMisses, evictedVersions);
+    }
+
+    /**
+     * Gives up the scratch file; the history cannot be used any more.
+     */
+    public void close(){
+        checkpoints.clear();
+        spilledTiles.clear();
+        current = null;
+        beforeRestore = null;
+        spill.close();
+    }
+
+    public void printStatistics(){
+        if(Boolean.getBoolean(STATISTICS_PROPERTY)){
+            System.out.println(getStatistics());
+        }
+    }
+
+    /**
+     * Returns to the last checkpoint taken at or before mark; the later ones
+     * are dropped. The edits from the mark returned up to mark are to be
+     * replayed.
+     *
+     * @return the mark of that checkpoint, or -1 when there is none.
+     */
+    public int restore(int mark){
+        Version target;
+
+        //A miss keeps the checkpoints, the log stays as it is:
+        if(checkpoints.isEmpty() || (checkpoints.get(0).mark > mark) || (current == null)){
+            restoreMisses++;
+            return -1;
+        }
+        discardAfter(mark);
+        target = checkpoints.get(checkpoints.size() - 1);
+        swapTiles(current, target);
+        beforeRestore = current;
+        current = target.copy(target.mark);
+        restores++;
+        if(target.mark == mark){
+            replayFree++;
+        }
+        return target.mark;
+    }
+
+    /**
+     * @return the pixels of the last checkpoint, or null when there is none.
+     */
+    public Raster readCheckpoint(){
+        Version last;
+        Raster pixels;
+        int tw, th;
+
+        if(checkpoints.isEmpty()){
+            return null;
+        }
+        last = checkpoints.get(checkpoints.size() - 1);
+        pixels = new Raster(last.width, last.height);
+        for(int ty = 0; ty < last.rows; ty++){
+            for(int tx = 0; tx < last.cols; tx++){
+                tw = last.tileWidth(tx);
+                th = last.tileHeight(ty);
+                for(int row = 0; row < th; row++){
+                    System.arraycopy(last.tiles[(ty*last.cols) + tx].getPixels(), row*tw,
+                            pixels.getPixels(), pixels.offset(tx*TILE_SIZE, (ty*TILE_SIZE) + row), tw);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return whether the last restore changed the size of the sheet.
+     */
+    public boolean isResized(){
+        return (beforeRestore == null) || (beforeRestore.width != current.width) ||
+                (beforeRestore.height != current.height);
+    }
+
+    /**
+     * Writes the tiles the last restore swapped (all of them after a size
+     * change) to the writers.
+     *
+     * @return {minX, minY, maxX, maxY} around the written tiles, or null.
+     */
+    public int[] writeRestoredTiles(PixelWriter... writers){
+        int[] bounds;
+        boolean all;
+        int tw, th, x, y;
+
+        all = isResized();
+        bounds = null;
+        for(int ty = 0; ty < current.rows; ty++){
+            for(int tx = 0; tx < current.cols; tx++){
+                int ind = (ty*current.cols) + tx;
+                if(all || (current.tiles[ind] != beforeRestore.tiles[ind])){
+                    x = tx*TILE_SIZE;
+                    y = ty*TILE_SIZE;
+                    tw = current.tileWidth(tx);
+                    th = current.tileHeight(ty);
+                    for(PixelWriter writer : writers){
+                        writer.setPixels(x, y, tw, th, Raster.FORMAT,
+                                current.tiles[ind].getPixels(), 0, tw);
+                    }
+                    if(bounds == null){
+                        bounds = new int[]{x, y, x + tw, y + th};
+                    } else {
+                        bounds[0] = Math.min(bounds[0], x);
+                        bounds[1] = Math.min(bounds[1], y);
+                        bounds[2] = Math.max(bounds[2], x + tw);
+                        bounds[3] = Math.max(bounds[3], y + th);
+                    }
+                }
+            }
+        }
+        return bounds;
+    }
+
+    private static class Version {
+
+        private final int width, height, cols, rows, mark;
+        private final Tile[] tiles;
+
+        Version(int w, int h, int atMark){
+            width = w;
+            height = h;
+            cols = (w + TILE_SIZE - 1)/TILE_SIZE;
+            rows = (h + TILE_SIZE - 1)/TILE_SIZE;
+            mark = atMark;
+            tiles = new Tile[cols*rows];
+        }
+
+        private Version(Version of, int atMark){
+            width = of.width;
+            height = of.height;
+            cols = of.cols;
+            rows = of.rows;
+            mark = atMark;
+            tiles = of.tiles.clone();
+        }
+
+        Version copy(int atMark){
+            return new Version(this, atMark);
+        }
+
+        boolean sameSize(Version other){
+            return (other.width == width) && (other.height == height);
+        }
+
+        boolean sameTiles(Version other){
+            if(!sameSize(other)){
+                return false;
+            }
+            for(int ind = 0; ind < tiles.length; ind++){
+                if(tiles[ind] != other.tiles[ind]){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int tileWidth(int tx){
+            return Math.min(TILE_SIZE, width - (tx*TILE_SIZE));
+        }
+
+        int tileHeight(int ty){
+            return Math.min(TILE_SIZE, height - (ty*TILE_SIZE));
+        }
+
+        int[] readTile(PixelReader reader, int tx, int ty){
+            int tw, th;
+            int[] pixels;
+
+            tw = tileWidth(tx);
+            th = tileHeight(ty);
+            pixels = new int[tw*th];
+            reader.getPixels(tx*TILE_SIZE, ty*TILE_SIZE, tw, th, Raster.FORMAT, pixels, 0, tw);
+            return pixels;
+        }
+    }
+
+    /**
+     * Unmodifiable pixels of a tile: plain, packed, or packed and paged out
+     * to the scratch file.
+     */
+    private class Tile {
+
+        private final int width, length;
+        private int[] pixels;
+        private byte[] packed;
+        private long spillAt;
+        private int spillLength, stamp;
+
+        Tile(int[] tilePixels, int tileWidth){
+            width = tileWidth;
+            length = tilePixels.length;
+            pixels = tilePixels;
+            packed = null;
+            spillAt = -1;
+        }
+
+        boolean isPacked(){
+            return pixels == null;
+        }
+
+        boolean isSpilled(){
+            return spillAt >= 0;
+        }
+
+        long getHeapBytes(){
+            if(pixels != null){
+                return 4L*length;
+            }
+            return (packed != null) ? packed.length : 0;
+        }
+
+        long getDiskBytes(){
+            return isSpilled() ? spillLength : 0;
+        }
+
+        /**
+         * Moves the packed pixels to the file.
+         *
+         * @return whether the tile went out.
+         */
+        boolean spillTo(SpillFile file){
+            long at;
+
+            if(packed == null){
+                return false;
+            }
+            at = file.write(packed);
+            if(at < 0){
+                return false;
+            }
+            spillAt = at;
+            spillLength = packed.length;
+            packed = null;
+            return true;
+        }
+
+        /**
+         * Gives up the scratch space of a tile no state holds any more.
+         */
+        void release(){
+            if(isSpilled()){
+                spill.release(spillAt, spillLength);
+                spillAt = -1;
+            }
+        }
+
+        /**
+         * @return the pixels, unpacked on the fly for a packed tile.
+         */
+        int[] getPixels(){
+            return (pixels != null) ? pixels : inflate();
+        }
+
+        void pack(){
+            packed = PixelPacker.pack(pixels, 0, length, width);
+            pixels = null;
+        }
+
+        void unpack(){
+            if(pixels == null){
+                pixels = inflate();
+                packed = null;
+                release();
+            }
+        }
+
+        private int[] inflate(){
+            int[] restored = new int[length];
+            PixelPacker.unpack((packed != null) ? packed : spill.read(spillAt, spillLength),
+                    restored, 0, length, width);
+            return restored;
+        }
+    }
+
+}